@@ -0,0 +1,52 @@
+package com.leyou.search.advice;
+
+import com.leyou.search.controller.SearchController;
+import com.leyou.search.service.SearchStatsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 统计搜索结果的序列化耗时：写出响应体之前记下时间，请求结束时计算
+ */
+@ControllerAdvice(assignableTypes = SearchController.class)
+public class SerializeTimingAdvice implements ResponseBodyAdvice<Object>, HandlerInterceptor {
+
+    private static final String START_ATTRIBUTE = SerializeTimingAdvice.class.getName() + ".start";
+
+    @Autowired
+    private SearchStatsService searchStatsService;
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return "search".equals(returnType.getMethod().getName());
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (body != null && request instanceof ServletServerHttpRequest) {
+            ((ServletServerHttpRequest) request).getServletRequest().setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+        return body;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object start = request.getAttribute(START_ATTRIBUTE);
+        if (start != null) {
+            this.searchStatsService.recordSerialize(System.nanoTime() - (Long) start);
+        }
+    }
+}
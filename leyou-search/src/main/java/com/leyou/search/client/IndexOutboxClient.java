@@ -0,0 +1,8 @@
+package com.leyou.search.client;
+
+import com.leyou.item.api.IndexOutboxApi;
+import org.springframework.cloud.openfeign.FeignClient;
+
+@FeignClient("item-service")
+public interface IndexOutboxClient extends IndexOutboxApi {
+}
@@ -0,0 +1,28 @@
+package com.leyou.search.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * 商品索引构建相关配置
+ */
+@Data
+@ConfigurationProperties(prefix = "ly.search.index")
+public class IndexProperties {
+    private Integer pageSize = 100; //每页拉取的spu数量，商品微服务最多允许100
+    private Integer concurrency = 8; //并发拉取的线程数
+    private Integer bulkActions = 500; //单次bulk最多文档数
+    private Long bulkBytes = 5L * 1024 * 1024; //单次bulk最大字节数
+    private String checkpointFile; //检查点文件，记录已完成的页码
+    private Boolean syncEnabled = true; //是否拉取商品变更事件增量更新索引
+    private Integer syncBatchSize = 200; //每次拉取的变更事件数
+    private Long syncInterval = 1000L; //拉取间隔(ms)
+    private Integer skuSummaryLimit = 5; //每个商品在列表页展示的sku数量
+    private Integer shards = 1; //新建索引的分片数
+    private Integer replicas = 0; //副本数，全量构建期间为0，切换别名前恢复
+    private String refreshInterval = "1s"; //刷新间隔，全量构建期间关闭
+    private Integer keepVersions = 2; //保留的旧版本索引数量，用于回滚
+    private String specMapping = "typed"; //新建索引时规格参数的存储方式：dynamic、typed或nested
+    private Boolean routeByCategory = false; //新建索引是否按三级分类路由，多分片时按分类过滤的搜索只访问对应的分片
+    private Integer routingPartitionSize = 1; //每个分类分散到的分片数，必须小于分片数
+}
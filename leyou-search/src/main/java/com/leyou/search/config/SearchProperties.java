@@ -0,0 +1,56 @@
+package com.leyou.search.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 搜索相关配置
+ */
+@Data
+@ConfigurationProperties(prefix = "ly.search")
+public class SearchProperties {
+    public static final String ENGINE_ELASTICSEARCH = "elasticsearch";
+    public static final String ENGINE_LUCENE = "lucene";
+
+    private String engine = ENGINE_ELASTICSEARCH; //搜索引擎，elasticsearch或lucene(内嵌索引，不依赖elasticsearch)
+    private String lucenePath = System.getProperty("java.io.tmpdir") + "/leyou-search/lucene"; //内嵌Lucene索引的目录
+    private Long specIntervalRefresh = 600000L; //数值规格参数区间的后台刷新间隔(ms)
+    private Integer specCacheSize = 2000; //缓存的分类规格模板数量上限
+    private Duration specCacheRefresh = Duration.ofMinutes(1); //规格模板写入多久后在后台异步刷新
+    private Duration specCacheExpire = Duration.ofMinutes(5); //规格模板写入多久后过期，刷新一直失败时最多使用这么久的旧模板
+    private Long dictionaryRefresh = 300000L; //品牌和分类字典的全量刷新间隔(ms)
+    private Integer facetThreads = 16; //解析聚合结果的线程数
+    private Integer facetQueueSize = 256; //解析聚合结果的队列长度
+    private Duration facetTimeout = Duration.ofMillis(500); //查询返回后等待规格参数聚合的期限，不包含查询本身的耗时
+    private Duration searchWaitTimeout = Duration.ofSeconds(2); //等待相同的并发搜索返回结果的最长时间
+    private Boolean resultCacheEnabled = true; //是否缓存搜索结果
+    private Integer resultCacheSize = 10000; //缓存的搜索结果条数上限
+    private Long resultCacheBytes = 64L * 1024 * 1024; //缓存的搜索结果字节数上限，按结果序列化成json后的UTF-8字节数估算
+    private Duration resultCacheRefresh = Duration.ofSeconds(30); //搜索结果写入后多久在后台异步刷新
+    private Duration resultCacheExpire = Duration.ofMinutes(5); //搜索结果写入后多久过期
+    private Long resultCacheInvalidate = 5000L; //增量更新后没有限定分类和品牌的搜索结果合并失效的间隔(ms)
+    private Duration slowThreshold = Duration.ofMillis(500); //超过这个耗时的搜索视为慢查询
+    private Double slowSampleRate = 0.1; //慢查询写日志的抽样比例
+    private Integer slowKeep = 50; //actuator端点中保留的最近慢查询条数
+    private Long suggestReload = 3600000L; //输入提示从索引全量加载的间隔(ms)
+    private Long suggestRebuild = 5000L; //增量修改后重新生成输入提示的间隔(ms)
+    private Integer suggestMaxLength = 50; //标题超过这个长度的部分不参与输入提示，控制内存占用
+    private Integer suggestScanLimit = 20000; //每次输入提示最多扫描的提示词数
+    private Integer browseFacetSize = 2000; //缓存品牌和规格参数选项的分类数上限
+    private Duration browseFacetRefresh = Duration.ofMinutes(10); //分类的品牌和规格参数选项写入后多久在后台异步刷新
+    private Duration browseFacetExpire = Duration.ofHours(1); //分类的品牌和规格参数选项写入后多久过期
+    private Integer browseBrandSize = 50; //按分类浏览时最多显示的品牌数
+    private Boolean degradeEnabled = true; //过载时是否自动降级
+    private Long degradePeriod = 1000L; //根据负载调整降级级别的周期(ms)
+    private Integer degradeSampleSize = 1000; //每个周期最多保留的查询耗时样本数
+    private Double degradePercentile = 0.95; //按查询耗时的哪个分位值判断负载
+    private List<Duration> degradeLatency = Arrays.asList(Duration.ofMillis(300), Duration.ofMillis(600), Duration.ofMillis(1000)); //查询耗时分位值达到这些阈值时依次降级到不聚合规格参数、不聚合品牌、减小每页商品数
+    private List<Integer> degradeInFlight = Arrays.asList(64, 128, 192); //执行中的搜索数达到这些阈值时依次降级，含义同上
+    private Integer degradeRecoverPeriods = 10; //连续多少个周期负载低于当前级别后恢复一级
+    private Integer degradePageSize = 10; //减小每页商品数时的每页大小
+    private Integer batchMaxSize = 30; //一次批量搜索最多的条件数
+}
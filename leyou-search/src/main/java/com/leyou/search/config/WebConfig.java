@@ -0,0 +1,19 @@
+package com.leyou.search.config;
+
+import com.leyou.search.advice.SerializeTimingAdvice;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private SerializeTimingAdvice serializeTimingAdvice;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(serializeTimingAdvice).addPathPatterns("/page");
+    }
+}
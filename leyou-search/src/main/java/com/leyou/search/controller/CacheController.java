@@ -0,0 +1,57 @@
+package com.leyou.search.controller;
+
+import com.leyou.search.service.SearchCacheService;
+import com.leyou.search.service.SearchService;
+import com.leyou.search.service.SpecTemplateService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("cache")
+public class CacheController {
+
+    @Autowired
+    private SpecTemplateService specTemplateService;
+
+    @Autowired
+    private SearchCacheService searchCacheService;
+
+    @Autowired
+    private SearchService searchService;
+
+    /**
+     * 分类的规格模板修改后，使缓存失效
+     * @param cid 三级分类id
+     * @return
+     */
+    @DeleteMapping("spec/{cid}")
+    public ResponseEntity<Void> invalidateSpec(@PathVariable("cid") Long cid) {
+        this.specTemplateService.invalidate(cid);
+        this.searchService.invalidateCategoryFacets(cid);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+    @DeleteMapping("spec")
+    public ResponseEntity<Void> invalidateAllSpec() {
+        this.specTemplateService.invalidateAll();
+        this.searchService.invalidateCategoryFacets(null);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+    @DeleteMapping("result")
+    public ResponseEntity<Void> invalidateAllResult() {
+        this.searchCacheService.invalidateAll();
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+    /**
+     * 按分类浏览时使用的品牌和规格参数选项
+     */
+    @DeleteMapping("facets")
+    public ResponseEntity<Void> invalidateAllFacets() {
+        this.searchService.invalidateCategoryFacets(null);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+}
@@ -0,0 +1,86 @@
+package com.leyou.search.controller;
+
+import com.leyou.search.pojo.IndexBenchmark;
+import com.leyou.search.pojo.IndexProgress;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.service.IndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("index")
+public class IndexController {
+
+    @Autowired
+    private IndexService indexService;
+
+    /**
+     * 全量重建商品索引
+     * @param resume 是否从上次中断的检查点继续
+     * @return 构建进度，已有构建任务时返回409
+     */
+    @PostMapping("rebuild")
+    public ResponseEntity<IndexProgress> rebuild(@RequestParam(value = "resume", defaultValue = "false") Boolean resume) {
+        if (!this.indexService.rebuild(resume)) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        return ResponseEntity.accepted().body(this.indexService.getProgress());
+    }
+
+    @GetMapping("progress")
+    public ResponseEntity<IndexProgress> progress() {
+        return ResponseEntity.ok(this.indexService.getProgress());
+    }
+
+    /**
+     * 所有版本的商品索引，新的在前
+     */
+    @GetMapping("versions")
+    public ResponseEntity<List<IndexVersion>> versions() {
+        return ResponseEntity.ok(this.indexService.getVersions());
+    }
+
+    /**
+     * 在每个版本的索引上执行同一个分类的规格参数聚合，比较不同规格参数存储方式(spec-mapping)的索引大小和聚合耗时。
+     * 先用不同的存储方式各全量构建一次，保留的旧版本就可以一起比较
+     * @param cid 三级分类id
+     * @param runs 每个版本执行的次数，1到100
+     */
+    @GetMapping("versions/benchmark")
+    public ResponseEntity<List<IndexBenchmark>> benchmark(@RequestParam("cid") Long cid,
+                                                          @RequestParam(value = "runs", defaultValue = "20") Integer runs) {
+        if (runs < 1 || runs > 100) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        return ResponseEntity.ok(this.indexService.benchmark(cid, runs));
+    }
+
+    /**
+     * 把读写别名切换回上一个版本的索引
+     * @return 切换后的索引名，正在全量构建时返回409，没有更早的版本时返回404
+     */
+    @PostMapping("rollback")
+    public ResponseEntity<String> rollback() {
+        if (this.indexService.getProgress().getRunning()) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        String index = this.indexService.rollback();
+        if (index == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(index);
+    }
+
+    /**
+     * 删除超出保留数量的旧版本索引
+     * @return 删除的索引名
+     */
+    @DeleteMapping("versions")
+    public ResponseEntity<List<String>> cleanup() {
+        return ResponseEntity.ok(this.indexService.cleanup());
+    }
+}
@@ -1,26 +1,88 @@
 package com.leyou.search.controller;
 
+import com.leyou.common.exception.LyException;
 import com.leyou.common.pojo.PageResult;
+import com.leyou.item.pojo.Sku;
+import com.leyou.search.pojo.BatchSearchEntry;
 import com.leyou.search.pojo.Goods;
 import com.leyou.search.pojo.SearchRequest;
+import com.leyou.search.service.SearchCacheService;
 import com.leyou.search.service.SearchService;
+import com.leyou.search.service.SuggestService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 @RestController
 @RequestMapping
 public class SearchController {
 
+    @Autowired
+    private SearchCacheService searchCacheService;
+
+    @Autowired
+    private SuggestService suggestService;
+
     @Autowired
     private SearchService searchService;
 
     @PostMapping("page")
     public ResponseEntity<PageResult<Goods>> search(@RequestBody SearchRequest request){
-        PageResult<Goods> result = this.searchService.search(request);
+        PageResult<Goods> result;
+        try {
+            result = this.searchCacheService.search(request);
+        } catch (LyException e) {
+            return ResponseEntity.status(e.getExceptionEnum().getCode()).build();
+        }
         if (result==null)
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         return ResponseEntity.ok(result);
     }
+
+    /**
+     * 批量搜索，首页等需要同时展示多组商品的地方一次请求完成，只返回商品，不返回分类、品牌和规格参数
+     * @param requests 搜索条件，不支持游标分页
+     * @return 和请求一一对应，单个条件失败时该项只有状态码和错误信息
+     */
+    @PostMapping("page/batch")
+    public ResponseEntity<List<BatchSearchEntry>> batchSearch(@RequestBody List<SearchRequest> requests) {
+        if (CollectionUtils.isEmpty(requests)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        try {
+            return ResponseEntity.ok(this.searchCacheService.batchSearch(requests));
+        } catch (LyException e) {
+            return ResponseEntity.status(e.getExceptionEnum().getCode()).build();
+        }
+    }
+
+    /**
+     * 搜索框输入提示
+     * @param key 已经输入的内容
+     * @param size 最多返回的条数，不超过20
+     * @return
+     */
+    @GetMapping("suggest")
+    public ResponseEntity<List<String>> suggest(@RequestParam("key") String key,
+                                                @RequestParam(value = "size", defaultValue = "10") Integer size) {
+        return ResponseEntity.ok(this.suggestService.suggest(key, Math.max(1, Math.min(size, 20))));
+    }
+
+    /**
+     * 查询商品完整的sku列表，列表页的搜索结果中只有前几个sku的摘要
+     * @param spuId
+     * @return
+     */
+    @GetMapping("goods/{spuId}/skus")
+    public ResponseEntity<List<Sku>> querySkus(@PathVariable("spuId") Long spuId) {
+        List<Sku> skus = this.searchService.querySkuBySpuId(spuId);
+        if (CollectionUtils.isEmpty(skus)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(skus);
+    }
 }
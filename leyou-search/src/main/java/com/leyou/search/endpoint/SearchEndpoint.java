@@ -0,0 +1,34 @@
+package com.leyou.search.endpoint;
+
+import com.leyou.search.service.DegradeService;
+import com.leyou.search.service.SearchStatsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * /actuator/search：搜索各阶段耗时、最近的慢查询和降级状态
+ */
+@Component
+@Endpoint(id = "search")
+public class SearchEndpoint {
+
+    @Autowired
+    private SearchStatsService searchStatsService;
+
+    @Autowired
+    private DegradeService degradeService;
+
+    @ReadOperation
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("phases", this.searchStatsService.getPhaseStats());
+        result.put("slowQueries", this.searchStatsService.getSlowQueries());
+        result.put("degrade", this.degradeService.getStatus());
+        return result;
+    }
+}
@@ -0,0 +1,26 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+/**
+ * 批量搜索中一个搜索条件的结果，成功时只有result，失败时只有status和error
+ */
+@Data
+public class BatchSearchEntry {
+    private SearchResult result; //只有商品和分页信息，没有分类、品牌和规格参数
+    private Integer status; //失败时的状态码，含义和单个搜索相同
+    private String error; //失败原因
+
+    public static BatchSearchEntry success(SearchResult result) {
+        BatchSearchEntry entry = new BatchSearchEntry();
+        entry.setResult(result);
+        return entry;
+    }
+
+    public static BatchSearchEntry failure(Integer status, String error) {
+        BatchSearchEntry entry = new BatchSearchEntry();
+        entry.setStatus(status);
+        entry.setError(error);
+        return entry;
+    }
+}
@@ -0,0 +1,34 @@
+package com.leyou.search.pojo;
+
+import com.leyou.item.pojo.Brand;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按分类浏览时预先统计好的品牌和规格参数选项，整个分类共用，创建后不可修改
+ */
+public final class CategoryFacets {
+    private final Long cid; //三级分类id
+    private final List<Brand> brands; //分类下的品牌，按商品数从多到少
+    private final List<Map<String, Object>> specs; //规格参数选项，数值类型为区间
+
+    public CategoryFacets(Long cid, List<Brand> brands, List<Map<String, Object>> specs) {
+        this.cid = cid;
+        this.brands = Collections.unmodifiableList(brands);
+        this.specs = Collections.unmodifiableList(specs);
+    }
+
+    public Long getCid() {
+        return cid;
+    }
+
+    public List<Brand> getBrands() {
+        return brands;
+    }
+
+    public List<Map<String, Object>> getSpecs() {
+        return specs;
+    }
+}
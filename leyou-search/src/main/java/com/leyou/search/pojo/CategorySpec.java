@@ -0,0 +1,42 @@
+package com.leyou.search.pojo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 分类下可搜索的规格参数，由规格模板解析而来，创建后不可修改
+ */
+public final class CategorySpec {
+    private final Long cid; //三级分类id
+    private final Set<String> strSpec; //字符串类型的参数名
+    private final Map<String, String> numericalUnits; //数值类型的参数名及单位
+
+    public CategorySpec(Long cid, Set<String> strSpec, Map<String, String> numericalUnits) {
+        this.cid = cid;
+        this.strSpec = Collections.unmodifiableSet(new LinkedHashSet<>(strSpec));
+        this.numericalUnits = Collections.unmodifiableMap(new LinkedHashMap<>(numericalUnits));
+    }
+
+    public static CategorySpec empty(Long cid) {
+        return new CategorySpec(cid, Collections.emptySet(), Collections.emptyMap());
+    }
+
+    public Long getCid() {
+        return cid;
+    }
+
+    public Set<String> getStrSpec() {
+        return strSpec;
+    }
+
+    public Map<String, String> getNumericalUnits() {
+        return numericalUnits;
+    }
+
+    public boolean isNumerical(String key) {
+        return numericalUnits.containsKey(key);
+    }
+}
@@ -0,0 +1,35 @@
+package com.leyou.search.pojo;
+
+/**
+ * 搜索的降级级别，负载越高级别越高，每一级都包含前面各级的降级措施
+ */
+public enum DegradeLevel {
+    /**
+     * 正常搜索
+     */
+    NORMAL,
+    /**
+     * 不聚合规格参数
+     */
+    NO_SPEC,
+    /**
+     * 规格参数和品牌都不聚合，只保留分类
+     */
+    NO_BRAND,
+    /**
+     * 在不聚合规格参数和品牌的基础上，减小每页的商品数
+     */
+    CAPPED_PAGE;
+
+    /**
+     * 是否已经达到指定的级别
+     */
+    public boolean atLeast(DegradeLevel level) {
+        return compareTo(level) >= 0;
+    }
+
+    public static DegradeLevel of(int ordinal) {
+        DegradeLevel[] levels = values();
+        return levels[Math.max(0, Math.min(ordinal, levels.length - 1))];
+    }
+}
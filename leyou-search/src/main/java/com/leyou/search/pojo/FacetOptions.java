@@ -0,0 +1,21 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 一次查询中需要统计的聚合，默认都不统计
+ */
+@Data
+public class FacetOptions {
+    private int categorySize; //最多返回的分类数，为0时不统计分类
+    private int brandSize; //最多返回的品牌数，为0时不统计品牌
+    private CategorySpec specParams; //要统计的规格参数，为null时不统计
+    private Map<String, Double> numericalInterval = Collections.emptyMap(); //数值参数的区间大小，没有区间的数值参数不统计
+
+    public static FacetOptions none() {
+        return new FacetOptions();
+    }
+}
@@ -2,20 +2,20 @@ package com.leyou.search.pojo;
 
 import org.springframework.data.annotation.Id;
 import org.springframework.data.elasticsearch.annotations.Document;
-import org.springframework.data.elasticsearch.annotations.Field;
-import org.springframework.data.elasticsearch.annotations.FieldType;
 
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
-@Document(indexName = "goods", type = "docs", shards = 1, replicas = 0)
+/**
+ * 商品索引文档。goods是读别名，索引由IndexAliasService按版本创建，映射见mapping/goods.json
+ */
+@Document(indexName = "goods", type = "docs", createIndex = false)
 public class Goods {
     @Id
     private Long id; // spuId
-    @Field(type = FieldType.Text, analyzer = "ik_max_word")
     private String all; // 所有需要被搜索的信息，包含标题，分类，甚至品牌
-    @Field(type = FieldType.Keyword, index = false)
+    private String title;// 标题，用于生成输入提示
     private String subTitle;// 卖点
     private Long brandId;// 品牌id
     private Long cid1;// 1级分类id
@@ -23,11 +23,11 @@ public class Goods {
     private Long cid3;// 3级分类id
     private Date createTime;// 创建时间
     private List<Long> price;// 价格
-    @Field(type = FieldType.Keyword, index = false)
-    private String skus;// sku信息的json结构
+    private List<SkuSummary> skus;// 列表页展示的sku摘要，完整的sku列表单独查询
+    private Integer skuCount;// sku总数，大于skus的数量时说明还有没展示的sku
     private Map<String, Object> specs;// 可搜索的规格参数，key是参数名，值是参数值
 
-    public Goods(Long id, String all, String subTitle, Long brandId, Long cid1, Long cid2, Long cid3, Date createTime, List<Long> price, String skus, Map<String, Object> specs) {
+    public Goods(Long id, String all, String subTitle, Long brandId, Long cid1, Long cid2, Long cid3, Date createTime, List<Long> price, List<SkuSummary> skus, Map<String, Object> specs) {
         this.id = id;
         this.all = all;
         this.subTitle = subTitle;
@@ -60,6 +60,14 @@ public class Goods {
         this.all = all;
     }
 
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
     public String getSubTitle() {
         return subTitle;
     }
@@ -116,14 +124,22 @@ public class Goods {
         this.price = price;
     }
 
-    public String getSkus() {
+    public List<SkuSummary> getSkus() {
         return skus;
     }
 
-    public void setSkus(String skus) {
+    public void setSkus(List<SkuSummary> skus) {
         this.skus = skus;
     }
 
+    public Integer getSkuCount() {
+        return skuCount;
+    }
+
+    public void setSkuCount(Integer skuCount) {
+        this.skuCount = skuCount;
+    }
+
     public Map<String, Object> getSpecs() {
         return specs;
     }
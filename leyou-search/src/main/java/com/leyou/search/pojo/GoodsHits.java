@@ -0,0 +1,35 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 搜索引擎返回的一页商品以及聚合结果，没有统计的聚合为null
+ */
+@Data
+public class GoodsHits {
+    private long total; //命中的商品总数
+    private List<Goods> items; //只包含列表页需要的字段：id,skus,skuCount,subTitle
+    private Object[] lastSortValues; //最后一条的排序值，用于生成翻页游标
+    private List<Long> categoryIds; //分类id，按商品数从多到少
+    private List<Long> brandIds; //品牌id，按商品数从多到少
+    private Map<String, List<Double>> specNumerical; //数值参数每个区间的起始值，从小到大
+    private Map<String, List<String>> specStrings; //字符串参数的可选值，按商品数从多到少
+    private RuntimeException failure; //批量查询中这一项失败的原因，成功时为null
+
+    public GoodsHits() {
+    }
+
+    public GoodsHits(long total, List<Goods> items) {
+        this.total = total;
+        this.items = items;
+    }
+
+    public static GoodsHits failed(RuntimeException failure) {
+        GoodsHits hits = new GoodsHits();
+        hits.setFailure(failure);
+        return hits;
+    }
+}
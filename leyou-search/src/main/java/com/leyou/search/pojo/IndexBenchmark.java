@@ -0,0 +1,15 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+/**
+ * 同一组规格参数聚合在一个版本的索引上的耗时，用来比较不同规格参数存储方式的索引大小和聚合速度
+ */
+@Data
+public class IndexBenchmark {
+    private IndexVersion version; //索引版本，包含文档数、磁盘空间、字段数和规格参数的存储方式
+    private Integer runs; //执行次数，不包括预热的一次
+    private Double avgMillis; //elasticsearch返回的took的平均值
+    private Long p50Millis; //took的中位数
+    private Long maxMillis; //took的最大值
+}
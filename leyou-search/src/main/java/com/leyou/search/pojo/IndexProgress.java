@@ -0,0 +1,23 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+/**
+ * 全量索引构建进度
+ */
+@Data
+public class IndexProgress {
+    private Boolean running; //是否正在构建
+    private Integer startPage; //本次开始的页码，断点续建时大于1
+    private Integer currentPage; //正在处理的页码
+    private Integer totalPage; //总页数
+    private Long total; //spu总数
+    private Long indexed; //已写入的文档数
+    private Long failed; //失败的文档数
+    private Long bulkRequests; //已发送的bulk请求数
+    private Double docsPerSecond; //吞吐量
+    private Long startTime; //开始时间
+    private Long endTime; //结束时间
+    private String error; //异常终止时的错误信息
+    private String indexName; //正在构建或未完成的索引，完成并切换别名后为空
+}
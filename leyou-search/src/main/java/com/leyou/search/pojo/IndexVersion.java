@@ -0,0 +1,19 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+/**
+ * 一个版本的商品索引
+ */
+@Data
+public class IndexVersion {
+    private String name; //物理索引名
+    private Long docs; //文档数
+    private Long sizeBytes; //主分片占用的磁盘空间
+    private Integer fieldCount; //mapping中的字段数
+    private String specMapping; //规格参数的存储方式：dynamic、typed或nested
+    private Integer shards; //主分片数
+    private Boolean routedByCategory; //是否按三级分类路由
+    private Boolean live; //是否是当前读写别名指向的索引
+    private Boolean building; //是否正在全量构建
+}
@@ -0,0 +1,85 @@
+package com.leyou.search.pojo;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.util.CollectionUtils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * 规范化后的搜索条件：关键字去掉多余空白并转小写，过滤条件按名称排序并去掉空值
+ */
+public final class SearchKey {
+    private final String key;
+    private final int page;
+    private final String sortBy;
+    private final boolean descending;
+    private final TreeMap<String, String> filter;
+    private final String cursor;
+
+    private SearchKey(String key, int page, String sortBy, boolean descending, TreeMap<String, String> filter, String cursor) {
+        this.key = key;
+        this.page = page;
+        this.sortBy = sortBy;
+        this.descending = descending;
+        this.filter = filter;
+        this.cursor = cursor;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Map<String, String> getFilter() {
+        return Collections.unmodifiableMap(filter);
+    }
+
+    public static SearchKey of(SearchRequest request) {
+        String key = StringUtils.join(StringUtils.split(StringUtils.defaultString(request.getKey())), " ").toLowerCase();
+        String sortBy = StringUtils.trimToEmpty(request.getSortBy());
+        //没有排序字段时升降序没有意义
+        boolean descending = !sortBy.isEmpty() && Boolean.TRUE.equals(request.getDescending());
+        TreeMap<String, String> filter = new TreeMap<>();
+        if (!CollectionUtils.isEmpty(request.getFilter())) {
+            for (Map.Entry<String, String> entry : request.getFilter().entrySet()) {
+                if (StringUtils.isNotBlank(entry.getKey()) && StringUtils.isNotBlank(entry.getValue())) {
+                    filter.put(entry.getKey().trim(), entry.getValue().trim());
+                }
+            }
+        }
+        //游标为null时是普通分页，空字符串时是游标分页的第一页
+        String cursor = request.getCursor() == null ? null : request.getCursor().trim();
+        return new SearchKey(key, request.getPage(), sortBy, descending, filter, cursor);
+    }
+
+    public SearchRequest toRequest() {
+        SearchRequest request = new SearchRequest(key, page);
+        request.setSortBy(sortBy.isEmpty() ? null : sortBy);
+        request.setDescending(descending);
+        request.setFilter(new TreeMap<>(filter));
+        request.setCursor(cursor);
+        return request;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SearchKey)) return false;
+        SearchKey that = (SearchKey) o;
+        return page == that.page && descending == that.descending && key.equals(that.key)
+                && sortBy.equals(that.sortBy) && filter.equals(that.filter) && Objects.equals(cursor, that.cursor);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, page, sortBy, descending, filter, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return "{key=" + key + ", page=" + page + ", sortBy=" + sortBy + ", descending=" + descending
+                + ", filter=" + filter + (cursor == null ? "" : ", cursor=" + cursor) + "}";
+    }
+}
@@ -13,6 +13,8 @@ public class SearchRequest {
 
     private Map<String,String> filter;//过滤条件
 
+    private String cursor;//游标分页，为空字符串时从第一页开始，之后传上一页返回的nextCursor
+
     public SearchRequest(String key, Integer page) {
         this.key = key;
         this.page = page;
@@ -42,6 +44,14 @@ public class SearchRequest {
         this.filter = filter;
     }
 
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
     public SearchRequest() {
     }
 
@@ -11,6 +11,8 @@ public class SearchResult extends PageResult<Goods> {
     private List<Category> categories;
     private List<Brand> brands;
     private List<Map<String,Object>> specs;
+    private String nextCursor;//游标分页时下一页的游标，没有下一页时为空
+    private DegradeLevel degradeLevel;//搜索时使用的降级级别，不是NORMAL时缺少部分聚合结果或者每页商品数减小
 
 
     public SearchResult(List<Category> categories, List<Brand> brands, List<Map<String, Object>> specs) {
@@ -32,4 +34,20 @@ public class SearchResult extends PageResult<Goods> {
         this.brands = brands;
         this.specs = specs;
     }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public DegradeLevel getDegradeLevel() {
+        return degradeLevel;
+    }
+
+    public void setDegradeLevel(DegradeLevel degradeLevel) {
+        this.degradeLevel = degradeLevel;
+    }
 }
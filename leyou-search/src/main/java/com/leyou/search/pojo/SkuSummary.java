@@ -0,0 +1,14 @@
+package com.leyou.search.pojo;
+
+import lombok.Data;
+
+/**
+ * 列表页展示用的sku摘要，只保存在_source中，不建索引
+ */
+@Data
+public class SkuSummary {
+    private Long id;
+    private String title;
+    private Long price;
+    private String image; // 第一张图片
+}
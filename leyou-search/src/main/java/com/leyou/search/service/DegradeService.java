@@ -0,0 +1,153 @@
+package com.leyou.search.service;
+
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.DegradeLevel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 过载时的自动降级。按最近一个统计周期内查询耗时的分位值和正在执行的搜索数决定降级级别：
+ * 先不聚合规格参数，再不聚合品牌，最后减小每页的商品数。
+ * 负载升高时立即升到对应的级别，连续若干个周期负载都低于当前级别后才降一级，避免来回抖动
+ */
+@Service
+@EnableConfigurationProperties(SearchProperties.class)
+public class DegradeService {
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final Logger logger = LoggerFactory.getLogger(DegradeService.class);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile DegradeLevel level = DegradeLevel.NORMAL;
+
+    /**
+     * 连续低于当前级别的周期数，只在定时任务中读写
+     */
+    private int calmPeriods;
+
+    /**
+     * 本周期内的查询耗时(ns)，超过容量后循环覆盖
+     */
+    private long[] samples;
+    private int sampleCount;
+
+    private volatile long lastPercentile;
+
+    private final Map<DegradeLevel, Counter> counters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        this.samples = new long[props.getDegradeSampleSize()];
+        meterRegistry.gauge("search.inflight", inFlight);
+        meterRegistry.gauge("search.degrade.level", this, s -> s.level.ordinal());
+    }
+
+    /**
+     * 开始执行一次搜索
+     * @return 本次搜索使用的降级级别
+     */
+    public DegradeLevel enter() {
+        inFlight.incrementAndGet();
+        DegradeLevel current = props.getDegradeEnabled() ? level : DegradeLevel.NORMAL;
+        if (current != DegradeLevel.NORMAL) {
+            counters.computeIfAbsent(current, l -> Counter.builder("search.degraded").tag("level", l.name())
+                    .description("降级执行的搜索次数").register(meterRegistry)).increment();
+        }
+        return current;
+    }
+
+    /**
+     * 搜索执行完成，和enter成对调用
+     */
+    public void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 记录一次查询的耗时
+     */
+    public synchronized void recordLatency(long nanos) {
+        samples[sampleCount++ % samples.length] = nanos;
+    }
+
+    public DegradeLevel getLevel() {
+        return props.getDegradeEnabled() ? level : DegradeLevel.NORMAL;
+    }
+
+    /**
+     * 每个周期根据负载调整一次降级级别
+     */
+    @Scheduled(fixedDelayString = "${ly.search.degrade-period:1000}")
+    public void evaluate() {
+        long percentile;
+        synchronized (this) {
+            long[] values = Arrays.copyOf(samples, Math.min(sampleCount, samples.length));
+            sampleCount = 0;
+            Arrays.sort(values);
+            percentile = values.length == 0 ? 0 : values[(int) Math.ceil(values.length * props.getDegradePercentile()) - 1];
+        }
+        this.lastPercentile = percentile;
+        int running = inFlight.get();
+        DegradeLevel target = DegradeLevel.of(Math.max(
+                levelOf(props.getDegradeLatency(), threshold -> percentile >= threshold.toNanos()),
+                levelOf(props.getDegradeInFlight(), threshold -> running >= threshold)));
+        DegradeLevel current = this.level;
+        if (target.compareTo(current) > 0) {
+            calmPeriods = 0;
+            this.level = target;
+            logger.warn("搜索负载升高，降级到{}，查询耗时p{}={}ms，执行中的搜索{}个", target,
+                    Math.round(props.getDegradePercentile() * 100), percentile / 1e6, running);
+        } else if (target.compareTo(current) < 0) {
+            if (++calmPeriods >= props.getDegradeRecoverPeriods()) {
+                calmPeriods = 0;
+                this.level = DegradeLevel.of(current.ordinal() - 1);
+                logger.info("搜索负载下降，恢复到{}", this.level);
+            }
+        } else {
+            calmPeriods = 0;
+        }
+    }
+
+    /**
+     * 当前状态，供actuator端点查看
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", props.getDegradeEnabled());
+        status.put("level", level);
+        status.put("inFlight", inFlight.get());
+        status.put("latencyPercentile", lastPercentile / 1e6);
+        return status;
+    }
+
+    /**
+     * 阈值依次对应NO_SPEC、NO_BRAND、CAPPED_PAGE，返回达到的最高一级
+     */
+    private static <T> int levelOf(List<T> thresholds, Predicate<T> reached) {
+        int result = 0;
+        for (int i = 0; thresholds != null && i < thresholds.size(); i++) {
+            if (reached.test(thresholds.get(i))) {
+                result = i + 1;
+            }
+        }
+        return result;
+    }
+}
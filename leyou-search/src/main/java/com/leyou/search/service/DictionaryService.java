@@ -0,0 +1,115 @@
+package com.leyou.search.service;
+
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.leyou.item.pojo.Brand;
+import com.leyou.item.pojo.Category;
+import com.leyou.search.client.BrandClient;
+import com.leyou.search.client.CategoryClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 品牌和分类字典在本地的完整副本，以id为key，搜索时解析聚合结果不需要远程调用。
+ * 启动时加载并定时全量刷新；查询时发现不存在的id会跳过，并触发一次后台刷新，不在搜索线程中远程调用。
+ * 字典整体替换，读取时不需要加锁
+ */
+@Service
+public class DictionaryService {
+
+    @Autowired
+    private BrandClient brandClient;
+
+    @Autowired
+    private CategoryClient categoryClient;
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionaryService.class);
+
+    /**
+     * 两次因为缺失数据触发的刷新之间的最小间隔
+     */
+    private static final long RELOAD_INTERVAL = 10000L;
+
+    private volatile LongObjectHashMap<Brand> brands = new LongObjectHashMap<>();
+
+    private volatile LongObjectHashMap<Category> categories = new LongObjectHashMap<>();
+
+    private final AtomicLong lastReloadTime = new AtomicLong();
+
+    /**
+     * 全量加载品牌和分类
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${ly.search.dictionary-refresh:300000}")
+    public synchronized void reload() {
+        lastReloadTime.set(System.currentTimeMillis());
+        try {
+            List<Brand> brandList = this.brandClient.queryAllBrands();
+            LongObjectHashMap<Brand> brandMap = new LongObjectHashMap<>(brandList.size());
+            brandList.forEach(brand -> brandMap.put(brand.getId(), brand));
+
+            List<Category> categoryList = this.categoryClient.queryAllCategories();
+            LongObjectHashMap<Category> categoryMap = new LongObjectHashMap<>(categoryList.size());
+            //只保留搜索结果需要的id和名称
+            categoryList.forEach(category -> categoryMap.put(category.getId(), toFacet(category)));
+
+            this.brands = brandMap;
+            this.categories = categoryMap;
+            logger.info("品牌和分类字典加载完成，品牌{}个，分类{}个", brandMap.size(), categoryMap.size());
+        } catch (Exception e) {
+            logger.warn("品牌和分类字典加载失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 根据id查询品牌，顺序与ids一致。本地没有的品牌会被跳过，并触发一次后台刷新
+     */
+    public List<Brand> getBrands(List<Long> ids) {
+        return lookup(this.brands, ids);
+    }
+
+    /**
+     * 根据id查询分类，顺序与ids一致。本地没有的分类会被跳过，并触发一次后台刷新
+     */
+    public List<Category> getCategories(List<Long> ids) {
+        return lookup(this.categories, ids);
+    }
+
+    private <T> List<T> lookup(LongObjectHashMap<T> snapshot, List<Long> ids) {
+        List<T> result = new ArrayList<>(ids.size());
+        boolean miss = false;
+        for (Long id : ids) {
+            T value = snapshot.get(id);
+            if (value == null) {
+                miss = true;
+            } else {
+                result.add(value);
+            }
+        }
+        if (miss) {
+            requestReload();
+        }
+        return result;
+    }
+
+    private void requestReload() {
+        long last = lastReloadTime.get();
+        long now = System.currentTimeMillis();
+        if (now - last > RELOAD_INTERVAL && lastReloadTime.compareAndSet(last, now)) {
+            CompletableFuture.runAsync(this::reload);
+        }
+    }
+
+    private Category toFacet(Category category) {
+        Category c = new Category();
+        c.setId(category.getId());
+        c.setName(category.getName());
+        return c;
+    }
+}
@@ -0,0 +1,943 @@
+package com.leyou.search.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.search.config.IndexProperties;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.FacetOptions;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.GoodsHits;
+import com.leyou.search.pojo.IndexBenchmark;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.pojo.SearchRequest;
+import com.leyou.search.utils.SpecMapping;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentEntity;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 基于elasticsearch的商品索引，默认的搜索引擎。
+ * 查询都在读别名上执行，按分类路由的索引限定分类时只查询分类所在的分片；
+ * 全量构建写入新版本的物理索引，构建期间增量更新双写，完成后切换别名，支持断点续建
+ */
+@Service
+@ConditionalOnProperty(name = "ly.search.engine", havingValue = SearchProperties.ENGINE_ELASTICSEARCH, matchIfMissing = true)
+@EnableConfigurationProperties(IndexProperties.class)
+public class ElasticsearchGoodsService implements GoodsSearchEngine {
+
+    @Autowired
+    private ElasticsearchTemplate elasticsearchTemplate;
+
+    @Autowired
+    private IndexAliasService indexAliasService;
+
+    @Autowired
+    private SearchStatsService searchStatsService;
+
+    @Autowired
+    private SpecTemplateService specTemplateService;
+
+    @Autowired
+    private IndexProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchGoodsService.class);
+
+    /**
+     * 列表页只需要这几个字段
+     */
+    private static final String[] LIST_FIELDS = {"id", "skus", "skuCount", "subTitle"};
+
+    /**
+     * 分类和品牌聚合的名称
+     */
+    private static final String CATEGORY_AGG = "category";
+    private static final String BRAND_AGG = "brand";
+
+    /**
+     * 规格参数聚合名称的前缀，避免和分类、品牌的聚合重名
+     */
+    private static final String SPEC_AGG_PREFIX = "spec_";
+
+    /**
+     * 正在全量构建的索引，构建期间增量更新同时写入这个索引
+     */
+    private volatile String buildingIndex;
+
+    /**
+     * 全量构建期间删除的spu，构建完成后从新索引中再删除一次，防止被旧数据写回
+     */
+    private final Set<Long> deletedDuringBuild = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 全量构建期间更新的spu和它最新的分类，按分类路由时旧分类下写入的副本要在构建完成后删除
+     */
+    private final Map<Long, Long> routedDuringBuild = new ConcurrentHashMap<>();
+
+    //以下只在全量构建线程中读写
+    private RebuildListener rebuildListener;
+    private BulkRequestBuilder rebuildBulk;
+    /**
+     * 已全部放入bulk的最后一页，bulk发送成功后才能记为检查点
+     */
+    private int lastCompletedPage;
+
+    /**
+     * 最近一次写入检查点的页码，增量更新改写检查点时沿用
+     */
+    private int checkpointPage;
+
+    //指标
+    private Counter indexedCounter;
+    private Counter failedCounter;
+    private Timer bulkTimer;
+    private DistributionSummary bulkBytes;
+
+    @PostConstruct
+    public void init() {
+        this.indexedCounter = Counter.builder("search.index.docs").tag("result", "indexed")
+                .description("写入索引的商品文档数").register(meterRegistry);
+        this.failedCounter = Counter.builder("search.index.docs").tag("result", "failed")
+                .description("构建或写入失败的商品文档数").register(meterRegistry);
+        this.bulkTimer = Timer.builder("search.index.bulk")
+                .description("bulk请求耗时").register(meterRegistry);
+        this.bulkBytes = DistributionSummary.builder("search.index.bulk.bytes").baseUnit("bytes")
+                .description("bulk请求大小").register(meterRegistry);
+        //别名不完整时写入会自动创建错误的索引，直接启动失败
+        this.indexAliasService.ensureAliases();
+        //上次没有完成的构建，重启后继续双写，以便断点续建
+        Checkpoint checkpoint = readCheckpoint();
+        try {
+            if (checkpoint != null && this.indexAliasService.indexExists(checkpoint.getIndex())) {
+                restore(checkpoint);
+            }
+        } catch (Exception e) {
+            logger.warn("检查未完成的商品索引失败：{}", e.getMessage());
+        }
+    }
+
+    @Override
+    public GoodsHits search(SearchRequest request, int page, int size, FacetOptions facets) {
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
+        //1.对关键字进行全文检索查询，分类、品牌作为不评分的过滤条件
+        queryBuilder.withQuery(buildBasicQuery(request));
+        //2.规格参数过滤放到post_filter，这样规格参数的聚合还能统计到同一参数的其它选项
+        Map<String, QueryBuilder> specFilters = buildSpecFilters(request);
+        QueryBuilder specFilter = combineFilters(specFilters, null);
+        if (specFilter != null) {
+            queryBuilder.withFilter(specFilter);
+        }
+        queryBuilder.withSourceFilter(new FetchSourceFilter(LIST_FIELDS, null));
+        //3.分页和排序，只统计聚合时不返回商品
+        withPageAndSort(queryBuilder, request, page, Math.max(size, 1));
+        //4.聚合，分类和品牌的聚合不受post_filter影响，需要单独加上规格参数的过滤
+        if (facets.getCategorySize() > 0) {
+            queryBuilder.addAggregation(filteredAgg(AggregationBuilders.terms(CATEGORY_AGG).field("cid3")
+                    .size(facets.getCategorySize()), specFilter));
+        }
+        if (facets.getBrandSize() > 0) {
+            queryBuilder.addAggregation(filteredAgg(AggregationBuilders.terms(BRAND_AGG).field("brandId")
+                    .size(facets.getBrandSize()), specFilter));
+        }
+        SpecMapping specMapping = this.indexAliasService.getLiveSpecMapping();
+        if (facets.getSpecParams() != null) {
+            addSpecAggs(queryBuilder, specMapping, facets.getSpecParams(), facets.getNumericalInterval(), specFilters);
+        }
+        //限定了分类时，索引按分类路由的话只查询分类所在的分片
+        SearchRequestBuilder builder = this.indexAliasService.prepareSearch(queryBuilder.build(), SearchService.getCategoryFilter(request));
+        if (size == 0) {
+            builder.setSize(0);
+        }
+        SearchResponse response = builder.get();
+        //只统计聚合的都是品牌和规格参数选项的查询
+        searchStatsService.recordShards(size == 0 ? SearchStatsService.PHASE_SPEC : SearchStatsService.PHASE_QUERY, response);
+        //5.解析结果
+        GoodsHits hits = toHits(response.getHits());
+        Map<String, Aggregation> aggregationMap = unwrapAggs(response.getAggregations());
+        if (facets.getCategorySize() > 0) {
+            hits.setCategoryIds(termIds(aggregationMap.get(CATEGORY_AGG)));
+        }
+        if (facets.getBrandSize() > 0) {
+            hits.setBrandIds(termIds(aggregationMap.get(BRAND_AGG)));
+        }
+        if (facets.getSpecParams() != null) {
+            parseSpecAggs(aggregationMap, specMapping, facets.getSpecParams(), facets.getNumericalInterval(), hits);
+        }
+        return hits;
+    }
+
+    /**
+     * 按排序值加id的search_after翻页，翻到多深的位置代价都一样，也不受max_result_window的限制
+     */
+    @Override
+    public GoodsHits searchAfter(SearchRequest request, Object[] after, int size) {
+        String sortBy = StringUtils.trimToNull(request.getSortBy());
+        boolean desc = sortBy != null && Boolean.TRUE.equals(request.getDescending());
+        //过滤条件都放在filter中，不需要聚合也就不需要post_filter
+        BoolQueryBuilder query = buildBasicQuery(request);
+        buildSpecFilters(request).values().forEach(query::filter);
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withQuery(query)
+                .withSourceFilter(new FetchSourceFilter(LIST_FIELDS, null))
+                .withPageable(PageRequest.of(0, size));
+        if (sortBy != null) {
+            queryBuilder.withSort(SortBuilders.fieldSort(sortBy).order(desc ? SortOrder.DESC : SortOrder.ASC));
+        } else {
+            queryBuilder.withSort(SortBuilders.scoreSort());
+        }
+        //id保证排序值唯一，翻页时不会重复或遗漏
+        queryBuilder.withSort(SortBuilders.fieldSort("id").order(SortOrder.ASC));
+        //和分页查询一样在读别名上执行，限定分类时只查询分类所在的分片
+        SearchRequestBuilder builder = this.indexAliasService.prepareSearch(queryBuilder.build(), SearchService.getCategoryFilter(request));
+        if (after != null) {
+            builder.searchAfter(after);
+        }
+        SearchResponse response = builder.get();
+        searchStatsService.recordShards(SearchStatsService.PHASE_QUERY, response);
+        SearchHits searchHits = response.getHits();
+        GoodsHits hits = toHits(searchHits);
+        if (searchHits.getHits().length > 0) {
+            hits.setLastSortValues(searchHits.getHits()[searchHits.getHits().length - 1].getSortValues());
+        }
+        return hits;
+    }
+
+    /**
+     * 每个版本都按自己的规格参数存储方式生成聚合，直接在物理索引上执行。关闭请求缓存，先预热一次，took只包含服务端的耗时
+     */
+    @Override
+    public List<IndexBenchmark> benchmark(Long cid, FacetOptions facets, int runs) {
+        List<IndexBenchmark> results = new ArrayList<>();
+        for (IndexVersion version : getVersions()) {
+            SpecMapping specMapping = SpecMapping.of(version.getSpecMapping());
+            NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                    .withQuery(QueryBuilders.termQuery("cid3", cid.toString()))
+                    .withPageable(PageRequest.of(0, 1));
+            addSpecAggs(queryBuilder, specMapping, facets.getSpecParams(), facets.getNumericalInterval(), Collections.emptyMap());
+            SearchRequestBuilder builder = this.indexAliasService.prepareSearch(version.getName(), queryBuilder.build(), cid)
+                    .setSize(0).setRequestCache(false);
+            builder.get();
+            long[] took = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                took[i] = builder.get().getTook().millis();
+            }
+            Arrays.sort(took);
+            IndexBenchmark result = new IndexBenchmark();
+            result.setVersion(version);
+            result.setRuns(runs);
+            result.setAvgMillis(Arrays.stream(took).average().orElse(0));
+            result.setP50Millis(runs == 0 ? 0L : took[(runs - 1) / 2]);
+            result.setMaxMillis(runs == 0 ? 0L : took[runs - 1]);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * 所有查询合并成一次multi search执行
+     */
+    @Override
+    public List<GoodsHits> multiSearch(List<SearchRequest> requests, int size) {
+        GoodsHits[] results = new GoodsHits[requests.size()];
+        MultiSearchRequestBuilder multiSearch = client().prepareMultiSearch();
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            SearchRequest request = requests.get(i);
+            try {
+                BoolQueryBuilder query = buildBasicQuery(request);
+                buildSpecFilters(request).values().forEach(query::filter);
+                NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder().withQuery(query)
+                        .withSourceFilter(new FetchSourceFilter(LIST_FIELDS, null));
+                withPageAndSort(queryBuilder, request, request.getPage(), size);
+                multiSearch.add(this.indexAliasService.prepareSearch(queryBuilder.build(), SearchService.getCategoryFilter(request)));
+                slots.add(i);
+            } catch (IllegalArgumentException e) {
+                results[i] = GoodsHits.failed(e);
+            }
+        }
+        if (!slots.isEmpty()) {
+            MultiSearchResponse.Item[] responses = multiSearch.get().getResponses();
+            for (int j = 0; j < responses.length; j++) {
+                MultiSearchResponse.Item item = responses[j];
+                if (item.isFailure()) {
+                    logger.warn("批量搜索中的第{}个条件执行失败：{}", slots.get(j), item.getFailureMessage());
+                    results[slots.get(j)] = GoodsHits.failed(new IllegalStateException(item.getFailureMessage()));
+                } else {
+                    results[slots.get(j)] = toHits(item.getResponse().getHits());
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 用stats聚合统计分类下数值参数的最小值、最大值和总和
+     */
+    @Override
+    public Map<String, double[]> stats(Long cid, Set<String> keys) {
+        Map<String, double[]> result = new HashMap<>();
+        //准备查询条件
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
+        //不查询任何数据
+        queryBuilder.withQuery(QueryBuilders.termQuery("cid3", cid.toString())).withSourceFilter(new FetchSourceFilter(new String[]{""}, null)).withPageable(PageRequest.of(0, 1));
+        //添加stats类型的聚合,同时返回avg、max、min、sum、count等
+        SpecMapping specMapping = this.indexAliasService.getLiveSpecMapping();
+        for (String key : keys) {
+            queryBuilder.addAggregation(specMapping.statsAgg(key, key));
+        }
+        SearchResponse response = this.indexAliasService.search(queryBuilder.build(), cid);
+        searchStatsService.recordShards(SearchStatsService.PHASE_INTERVAL, response);
+        Map<String, Aggregation> aggregationMap = response.getAggregations().asMap();
+        for (String key : keys) {
+            Stats stats = (Stats) specMapping.unwrap(aggregationMap.get(key));
+            //该分类下没有这个参数的数据
+            if (stats == null || stats.getCount() == 0) {
+                continue;
+            }
+            result.put(key, new double[]{stats.getMin(), stats.getMax(), stats.getSum()});
+        }
+        return result;
+    }
+
+    /**
+     * 用scroll遍历读别名，只取id、title、brandId、cid3
+     */
+    @Override
+    public void forEach(Consumer<Goods> consumer) {
+        ElasticsearchPersistentEntity<Goods> entity = this.elasticsearchTemplate.getPersistentEntityFor(Goods.class);
+        Client client = client();
+        TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+        SearchResponse response = client.prepareSearch(entity.getIndexName()).setTypes(entity.getIndexType())
+                .setScroll(keepAlive)
+                .setSize(1000)
+                .setFetchSource(new String[]{"id", "title", "brandId", "cid3"}, null)
+                .addSort(SortBuilders.fieldSort("_doc"))
+                .get();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    Map<String, Object> source = hit.getSourceAsMap();
+                    Goods goods = new Goods();
+                    goods.setId(Long.valueOf(hit.getId()));
+                    goods.setTitle((String) source.get("title"));
+                    goods.setBrandId(toLong(source.get("brandId")));
+                    goods.setCid3(toLong(source.get("cid3")));
+                    consumer.accept(goods);
+                }
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).get();
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+        }
+    }
+
+    /**
+     * 在写别名上按id查询，按分类路由时不知道文档的路由，不能用get
+     */
+    @Override
+    public Map<Long, Goods> getByIds(Collection<Long> ids) {
+        Map<Long, Goods> found = new HashMap<>();
+        List<Long> list = new ArrayList<>(ids);
+        int batch = props.getBulkActions();
+        for (int from = 0; from < list.size(); from += batch) {
+            List<Long> part = list.subList(from, Math.min(from + batch, list.size()));
+            SearchResponse response = client().prepareSearch(this.indexAliasService.getWriteAlias())
+                    .setTypes(this.indexAliasService.getIndexType())
+                    .setQuery(QueryBuilders.idsQuery().addIds(part.stream().map(String::valueOf).toArray(String[]::new)))
+                    .setFetchSource(new String[]{"brandId", "cid3"}, null)
+                    //分类变过的商品可能在旧路由下还有一份副本
+                    .setSize(part.size() * 2)
+                    .get();
+            for (SearchHit hit : response.getHits().getHits()) {
+                Map<String, Object> source = hit.getSourceAsMap();
+                Goods goods = new Goods();
+                goods.setId(Long.valueOf(hit.getId()));
+                goods.setBrandId(toLong(source.get("brandId")));
+                goods.setCid3(toLong(source.get("cid3")));
+                found.putIfAbsent(goods.getId(), goods);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 新增或修改的goods与要删除的spu放在同一批bulk中写入
+     */
+    @Override
+    public Set<Long> apply(List<Goods> upserts, List<Long> deletes) {
+        Set<Long> failures = new HashSet<>();
+        List<String> targets = new ArrayList<>();
+        targets.add(this.indexAliasService.getWriteAlias());
+        String building = this.buildingIndex;
+        if (building != null) {
+            targets.add(building);
+            //同一个商品以最后一次变化为准
+            for (Goods goods : upserts) {
+                deletedDuringBuild.remove(goods.getId());
+                routedDuringBuild.put(goods.getId(), goods.getCid3());
+            }
+            deletes.forEach(routedDuringBuild::remove);
+            deletedDuringBuild.addAll(deletes);
+            //重启后断点续建时还要用到
+            writeCheckpoint(building, checkpointPage);
+        }
+        for (String index : targets) {
+            //正在构建的索引关闭了refresh，不能等待refresh
+            boolean live = !index.equals(building);
+            boolean routed = this.indexAliasService.isRoutedByCategory(index);
+            BulkRequestBuilder bulk = newBulk(live);
+            if (routed) {
+                //按分类路由时删除要带上文档所在的路由，构建中的索引查不到新写入的文档，留到构建完成后处理
+                List<DeleteRequestBuilder> stale = Collections.emptyList();
+                if (live) {
+                    Map<Long, Long> routings = new HashMap<>();
+                    upserts.forEach(goods -> routings.put(goods.getId(), goods.getCid3()));
+                    deletes.forEach(id -> routings.put(id, null));
+                    stale = staleCopies(index, routings);
+                }
+                for (DeleteRequestBuilder delete : stale) {
+                    bulk.add(delete);
+                    if (isFull(bulk)) {
+                        failures.addAll(flush(bulk));
+                        bulk = newBulk(live);
+                    }
+                }
+            }
+            for (Goods goods : upserts) {
+                bulk.add(indexRequest(index, goods));
+                if (isFull(bulk)) {
+                    failures.addAll(flush(bulk));
+                    bulk = newBulk(live);
+                }
+            }
+            for (Long id : routed ? Collections.<Long>emptyList() : deletes) {
+                bulk.add(client().prepareDelete(index, this.indexAliasService.getIndexType(), id.toString()));
+                if (isFull(bulk)) {
+                    failures.addAll(flush(bulk));
+                    bulk = newBulk(live);
+                }
+            }
+            failures.addAll(flush(bulk));
+        }
+        return failures;
+    }
+
+    /**
+     * 断点续建时继续写入上次的索引，否则创建新版本的索引
+     */
+    @Override
+    public int beginRebuild(boolean resume, RebuildListener listener) {
+        Checkpoint checkpoint = resume ? readCheckpoint() : null;
+        String index;
+        int first;
+        if (checkpoint != null && this.indexAliasService.indexExists(checkpoint.getIndex())) {
+            //同一进程中内存里的记录更新，重启后由init从检查点恢复
+            if (!checkpoint.getIndex().equals(this.buildingIndex)) {
+                restore(checkpoint);
+            }
+            index = checkpoint.getIndex();
+            first = checkpoint.getPage() + 1;
+        } else {
+            if (this.buildingIndex != null) {
+                this.indexAliasService.deleteIndex(this.buildingIndex);
+            }
+            this.buildingIndex = null;
+            deleteCheckpoint();
+            deletedDuringBuild.clear();
+            routedDuringBuild.clear();
+            index = this.indexAliasService.createIndex(true, this.specTemplateService.getAllCategorySpecs());
+            first = 1;
+            this.buildingIndex = index;
+            writeCheckpoint(index, 0);
+        }
+        this.rebuildListener = listener;
+        this.rebuildBulk = client().prepareBulk();
+        this.lastCompletedPage = first - 1;
+        logger.info("开始构建商品索引{}，从第{}页开始", index, first);
+        return first;
+    }
+
+    /**
+     * 放入bulk，达到数量或字节上限就发送。只在文档不存在时写入，构建期间增量更新写入的数据更新
+     */
+    @Override
+    public void addToRebuild(List<Goods> goodsList, int page) {
+        String index = this.buildingIndex;
+        for (Goods goods : goodsList) {
+            rebuildBulk.add(indexRequest(index, goods).setCreate(true));
+            if (isFull(rebuildBulk)) {
+                flushRebuild(rebuildBulk);
+                rebuildBulk = client().prepareBulk();
+                writeCheckpoint(index, lastCompletedPage);
+            }
+        }
+        lastCompletedPage = page;
+    }
+
+    @Override
+    public void finishRebuild() {
+        String index = this.buildingIndex;
+        flushRebuild(rebuildBulk);
+        writeCheckpoint(index, lastCompletedPage);
+        //1.构建期间删除的商品可能又被旧数据写回，再删除一次
+        BulkRequestBuilder deletes = client().prepareBulk();
+        if (this.indexAliasService.isRoutedByCategory(index)) {
+            //按分类路由时要知道文档在哪个分片上，构建期间关闭了refresh，先refresh才能查到
+            client().admin().indices().prepareRefresh(index).get();
+            Map<Long, Long> routings = new HashMap<>(routedDuringBuild);
+            deletedDuringBuild.forEach(id -> routings.put(id, null));
+            staleCopies(index, routings).forEach(deletes::add);
+        } else {
+            for (Long id : deletedDuringBuild) {
+                deletes.add(client().prepareDelete(index, this.indexAliasService.getIndexType(), id.toString()));
+            }
+        }
+        flush(deletes);
+        //2.合并段、恢复副本后切换别名
+        this.indexAliasService.finishBuild(index);
+        this.indexAliasService.swap(index);
+        this.buildingIndex = null;
+        deleteCheckpoint();
+        deletedDuringBuild.clear();
+        routedDuringBuild.clear();
+        this.indexAliasService.cleanup(null);
+        this.rebuildBulk = null;
+        this.rebuildListener = null;
+    }
+
+    /**
+     * 正在构建的索引和检查点都保留，增量更新继续双写，下次可以断点续建
+     */
+    @Override
+    public void abortRebuild() {
+        this.rebuildBulk = null;
+        this.rebuildListener = null;
+    }
+
+    @Override
+    public String getBuildingName() {
+        return this.buildingIndex;
+    }
+
+    @Override
+    public List<IndexVersion> getVersions() {
+        return this.indexAliasService.getVersions(this.buildingIndex);
+    }
+
+    @Override
+    public String rollback() {
+        return this.indexAliasService.rollback();
+    }
+
+    @Override
+    public List<String> cleanup() {
+        return this.indexAliasService.cleanup(this.buildingIndex);
+    }
+
+//    构建基本查询：关键字全文检索，分类和品牌的过滤条件放在filter中，不参与评分，可以被elasticsearch缓存。按分类浏览时没有关键字
+    private BoolQueryBuilder buildBasicQuery(SearchRequest request) {
+        BoolQueryBuilder basicQuery = QueryBuilders.boolQuery();
+        if (StringUtils.isNotBlank(request.getKey())) {
+            basicQuery.must(QueryBuilders.matchQuery("all", request.getKey()).operator(Operator.AND));
+        }
+        Map<String, String> filter = request.getFilter();
+        if (filter != null) {
+            for (Map.Entry<String, String> entry : filter.entrySet()) {
+                if (StringUtils.isBlank(entry.getValue())) {
+                    continue;
+                }
+                if (SearchService.isCategoryFilter(entry.getKey())) {
+                    basicQuery.filter(QueryBuilders.termQuery("cid3", entry.getValue()));
+                } else if (SearchService.isBrandFilter(entry.getKey())) {
+                    basicQuery.filter(QueryBuilders.termQuery("brandId", entry.getValue()));
+                }
+            }
+        }
+        return basicQuery;
+    }
+
+//    构建规格参数的过滤条件，key是参数名
+    private Map<String, QueryBuilder> buildSpecFilters(SearchRequest request) {
+        Map<String, QueryBuilder> specFilters = new HashMap<>();
+        Map<String, String> filter = request.getFilter();
+        if (filter == null) {
+            return specFilters;
+        }
+        SpecMapping specMapping = null;
+        CategorySpec spec = null;
+        for (Map.Entry<String, String> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (StringUtils.isBlank(value) || SearchService.isCategoryFilter(key) || SearchService.isBrandFilter(key)) {
+                continue;
+            }
+            if (specMapping == null) {
+                specMapping = this.indexAliasService.getLiveSpecMapping();
+                spec = this.specTemplateService.getFilterSpec(request);
+            }
+            double[] range = SearchService.parseRange(spec, key, value);
+            if (range != null) {
+                //数值类型的区间，和histogram聚合生成的选项对应，左闭右开
+                specFilters.put(key, specMapping.rangeQuery(key, range[0], range[1]));
+            } else {
+                specFilters.put(key, specMapping.termQuery(key, value));
+            }
+        }
+        return specFilters;
+    }
+
+//    合并规格参数的过滤条件，exclude是不需要合并的参数名
+    private QueryBuilder combineFilters(Map<String, QueryBuilder> specFilters, String exclude) {
+        BoolQueryBuilder bool = QueryBuilders.boolQuery();
+        specFilters.forEach((key, query) -> {
+            if (!key.equals(exclude)) {
+                bool.filter(query);
+            }
+        });
+        return bool.filter().isEmpty() ? null : bool;
+    }
+
+//    分页和排序
+    private void withPageAndSort(NativeSearchQueryBuilder queryBuilder, SearchRequest request, int page, int size) {
+        queryBuilder.withPageable(PageRequest.of(page - 1, size));
+        String sortBy = request.getSortBy();
+        Boolean desc = request.getDescending();
+        if (StringUtils.isNotBlank(sortBy)) {
+            queryBuilder.withSort(SortBuilders.fieldSort(sortBy).order(Boolean.TRUE.equals(desc) ? SortOrder.DESC : SortOrder.ASC));
+        }
+    }
+
+//    添加规格参数的聚合，每个参数的聚合只应用其它参数的过滤条件，已选参数的其它选项仍然可以显示
+    private void addSpecAggs(NativeSearchQueryBuilder queryBuilder, SpecMapping specMapping, CategorySpec specParams, Map<String, Double> numericalInterval, Map<String, QueryBuilder> specFilters) {
+        //聚合数值类型
+        for (Map.Entry<String,Double> entry : numericalInterval.entrySet()) {
+            queryBuilder.addAggregation(filteredAgg(specMapping.histogramAgg(SPEC_AGG_PREFIX + entry.getKey(), entry.getKey(), entry.getValue()),
+                    combineFilters(specFilters, entry.getKey())));
+        }
+        //聚合字符串
+        for (String key : specParams.getStrSpec()){
+            queryBuilder.addAggregation(filteredAgg(specMapping.termsAgg(SPEC_AGG_PREFIX + key, key),
+                    combineFilters(specFilters, key)));
+        }
+    }
+
+    private void parseSpecAggs(Map<String, Aggregation> aggregationMap, SpecMapping specMapping, CategorySpec specParams, Map<String, Double> numericalInterval, GoodsHits hits) {
+        Map<String, List<Double>> buckets = new LinkedHashMap<>();
+        for (String key : numericalInterval.keySet()) {
+            Histogram histogram = (Histogram) specMapping.unwrap(aggregationMap.get(SPEC_AGG_PREFIX + key));
+            buckets.put(key, histogram.getBuckets().stream().map(bucket -> (Double) bucket.getKey()).collect(Collectors.toList()));
+        }
+        Map<String, List<String>> options = new LinkedHashMap<>();
+        for (String key : specParams.getStrSpec()) {
+            Terms terms = (Terms) specMapping.unwrap(aggregationMap.get(SPEC_AGG_PREFIX + key));
+            options.put(key, terms.getBuckets().stream().map(Terms.Bucket::getKeyAsString).collect(Collectors.toList()));
+        }
+        hits.setSpecNumerical(buckets);
+        hits.setSpecStrings(options);
+    }
+
+//    有过滤条件时，把聚合包在filter聚合中，名称不变
+    private AbstractAggregationBuilder filteredAgg(AggregationBuilder agg, QueryBuilder filter) {
+        if (filter == null) {
+            return (AbstractAggregationBuilder) agg;
+        }
+        return AggregationBuilders.filter(agg.getName(), filter).subAggregation(agg);
+    }
+
+//    取出filter聚合中包着的聚合
+    private Aggregation unwrapAgg(Aggregation aggregation) {
+        if (aggregation instanceof Filter) {
+            return ((Filter) aggregation).getAggregations().get(aggregation.getName());
+        }
+        return aggregation;
+    }
+
+    private Map<String, Aggregation> unwrapAggs(Aggregations aggregations) {
+        Map<String, Aggregation> aggregationMap = new HashMap<>();
+        if (aggregations != null) {
+            aggregations.asMap().forEach((name, agg) -> aggregationMap.put(name, unwrapAgg(agg)));
+        }
+        return aggregationMap;
+    }
+
+//    分类、品牌聚合结果中的id，按商品数从多到少
+    private List<Long> termIds(Aggregation aggregation) {
+        List<Long> ids = new ArrayList<>();
+        for (Terms.Bucket bucket : ((Terms) aggregation).getBuckets()) {
+            ids.add(bucket.getKeyAsNumber().longValue());
+        }
+        return ids;
+    }
+
+    private GoodsHits toHits(SearchHits searchHits) {
+        List<Goods> items = new ArrayList<>();
+        for (SearchHit hit : searchHits.getHits()) {
+            items.add(JsonUtils.toBean(hit.getSourceAsString(), Goods.class));
+        }
+        return new GoodsHits(searchHits.getTotalHits(), items);
+    }
+
+    private Long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    private Client client() {
+        return this.elasticsearchTemplate.getClient();
+    }
+
+    private IndexRequestBuilder indexRequest(String index, Goods goods) {
+        IndexRequestBuilder request = client().prepareIndex(index, this.indexAliasService.getIndexType(), goods.getId().toString())
+                .setSource(toSource(this.indexAliasService.getSpecMapping(index), goods), XContentType.JSON);
+        if (this.indexAliasService.isRoutedByCategory(index)) {
+            request.setRouting(String.valueOf(goods.getCid3()));
+        }
+        return request;
+    }
+
+    /**
+     * 按分类路由的索引中，找出要删除的文档副本：商品已删除，或者分类变了之后留在旧分类路由下的副本。
+     * 同一个id在不同路由下可能各有一份，按id查出所有副本和它们的路由
+     * @param routings spuId和它最新的分类，分类为null表示商品已删除
+     */
+    private List<DeleteRequestBuilder> staleCopies(String index, Map<Long, Long> routings) {
+        List<DeleteRequestBuilder> requests = new ArrayList<>();
+        List<Long> ids = new ArrayList<>(routings.keySet());
+        int batch = props.getBulkActions();
+        for (int from = 0; from < ids.size(); from += batch) {
+            List<Long> part = ids.subList(from, Math.min(from + batch, ids.size()));
+            SearchResponse response = client().prepareSearch(index)
+                    .setTypes(this.indexAliasService.getIndexType())
+                    .setQuery(QueryBuilders.idsQuery().addIds(part.stream().map(String::valueOf).toArray(String[]::new)))
+                    .setFetchSource(false)
+                    //分类变过的商品会多出旧路由下的副本
+                    .setSize(part.size() * 2)
+                    .get();
+            for (SearchHit hit : response.getHits().getHits()) {
+                DocumentField field = hit.field(RoutingFieldMapper.NAME);
+                String routing = field == null ? null : String.valueOf(field.getValue());
+                Long cid3 = routings.get(Long.valueOf(hit.getId()));
+                if (cid3 != null && String.valueOf(cid3).equals(routing)) {
+                    continue;
+                }
+                DeleteRequestBuilder delete = client().prepareDelete(index, this.indexAliasService.getIndexType(), hit.getId());
+                if (routing != null) {
+                    delete.setRouting(routing);
+                }
+                requests.add(delete);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * 按目标索引的规格参数存储方式生成文档
+     */
+    private String toSource(SpecMapping specMapping, Goods goods) {
+        if (specMapping == SpecMapping.DYNAMIC || goods.getSpecs() == null) {
+            return JsonUtils.toString(goods);
+        }
+        Map<String, Object> source = JsonUtils.mapper.convertValue(goods, new TypeReference<Map<String, Object>>() {});
+        source.remove("specs");
+        //按规格模板区分数值和字符串参数，模板不可用时按值的类型判断
+        CategorySpec spec = goods.getCid3() == null ? null : this.specTemplateService.findCategorySpec(goods.getCid3());
+        source.putAll(specMapping.toSource(goods.getSpecs(), spec));
+        return JsonUtils.toString(source);
+    }
+
+    private boolean isFull(BulkRequestBuilder bulk) {
+        return bulk.numberOfActions() >= props.getBulkActions()
+                || bulk.request().estimatedSizeInBytes() >= props.getBulkBytes();
+    }
+
+    /**
+     * 增量更新写入线上索引时等待refresh后再返回，使搜索结果缓存失效时新数据已经可见
+     */
+    private BulkRequestBuilder newBulk(boolean waitForRefresh) {
+        BulkRequestBuilder bulk = client().prepareBulk();
+        return waitForRefresh ? bulk.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL) : bulk;
+    }
+
+    private void flushRebuild(BulkRequestBuilder bulk) {
+        int actions = bulk.numberOfActions();
+        Set<Long> failures = flush(bulk);
+        if (actions > 0 && rebuildListener != null) {
+            rebuildListener.onBulk(actions - failures.size(), failures.size());
+        }
+    }
+
+    /**
+     * 发送bulk请求
+     * @return 写入失败的spuId
+     */
+    private Set<Long> flush(BulkRequestBuilder bulk) {
+        int actions = bulk.numberOfActions();
+        if (actions == 0) {
+            return Collections.emptySet();
+        }
+        bulkBytes.record(bulk.request().estimatedSizeInBytes());
+        long begin = System.nanoTime();
+        BulkResponse response = bulk.get();
+        bulkTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        Set<Long> failures = new HashSet<>();
+        if (response.hasFailures()) {
+            for (BulkItemResponse item : response.getItems()) {
+                //删除不存在的文档、全量构建时文档已经由增量更新写入，都不算失败
+                if (item.isFailed() && item.getFailure().getStatus() != RestStatus.CONFLICT) {
+                    failures.add(Long.valueOf(item.getId()));
+                    logger.warn("商品索引写入失败，spuId：{}，原因：{}", item.getId(), item.getFailureMessage());
+                }
+            }
+        }
+        indexedCounter.increment(actions - failures.size());
+        failedCounter.increment(failures.size());
+        return failures;
+    }
+
+    /**
+     * 从检查点恢复正在构建的索引，以及构建期间增量删除和改过分类的商品
+     */
+    private void restore(Checkpoint checkpoint) {
+        deletedDuringBuild.clear();
+        routedDuringBuild.clear();
+        deletedDuringBuild.addAll(checkpoint.getDeleted());
+        routedDuringBuild.putAll(checkpoint.getRouted());
+        this.checkpointPage = checkpoint.getPage();
+        this.buildingIndex = checkpoint.getIndex();
+    }
+
+    private Checkpoint readCheckpoint() {
+        Path path = checkpointPath();
+        if (path == null || !Files.exists(path)) {
+            return null;
+        }
+        try {
+            Checkpoint checkpoint = JsonUtils.toBean(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), Checkpoint.class);
+            if (checkpoint == null || StringUtils.isBlank(checkpoint.getIndex())) {
+                logger.warn("索引检查点的内容无效，将从第一页开始");
+                return null;
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            logger.warn("读取索引检查点失败，将从第一页开始", e);
+            return null;
+        }
+    }
+
+    /**
+     * 全量构建线程和增量更新线程都会写入，构建完成后不再写入
+     */
+    private synchronized void writeCheckpoint(String index, int page) {
+        Path path = checkpointPath();
+        if (path == null || !index.equals(this.buildingIndex)) {
+            return;
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.setIndex(index);
+        checkpoint.setPage(page);
+        checkpoint.setDeleted(new HashSet<>(deletedDuringBuild));
+        checkpoint.setRouted(new HashMap<>(routedDuringBuild));
+        try {
+            //只有文件名时没有父目录
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, JsonUtils.toString(checkpoint).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.checkpointPage = page;
+        } catch (IOException e) {
+            logger.warn("写入索引检查点失败，page：{}", page, e);
+        }
+    }
+
+    private synchronized void deleteCheckpoint() {
+        Path path = checkpointPath();
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("删除索引检查点失败", e);
+        }
+    }
+
+    private Path checkpointPath() {
+        return StringUtils.isBlank(props.getCheckpointFile()) ? null : Paths.get(props.getCheckpointFile());
+    }
+
+    /**
+     * 检查点：正在构建的索引、已经全部写入该索引的最后一页，以及构建期间增量删除和改过分类的商品。
+     * 重启后断点续建时靠后两项把被旧数据写回的文档清理干净
+     */
+    @Data
+    private static class Checkpoint {
+        private String index;
+        private int page;
+        private Set<Long> deleted = new HashSet<>();
+        private Map<Long, Long> routed = new HashMap<>();
+    }
+}
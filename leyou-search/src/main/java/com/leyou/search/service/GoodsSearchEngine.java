@@ -0,0 +1,131 @@
+package com.leyou.search.service;
+
+import com.leyou.search.pojo.FacetOptions;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.GoodsHits;
+import com.leyou.search.pojo.IndexBenchmark;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.pojo.SearchRequest;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 商品索引的读写。由ly.search.engine选择实现：elasticsearch(默认)或lucene(内嵌索引)。
+ * 搜索、分页、游标和聚合的语义在两种实现中保持一致，上层的搜索和索引服务只依赖这个接口
+ */
+public interface GoodsSearchEngine {
+
+    /**
+     * 按页码分页查询，同时统计facets中要求的聚合。
+     * 分类和品牌的聚合只统计满足所有规格参数过滤条件的商品；每个规格参数的聚合只应用其它参数的过滤条件
+     * @param size 每页商品数，为0时只统计聚合
+     */
+    GoodsHits search(SearchRequest request, int page, int size, FacetOptions facets);
+
+    /**
+     * 按上一页最后一条的排序值翻页，不统计聚合。排序值最后一项是id，保证唯一
+     * @param after 上一页最后一条的排序值，为null时返回第一页
+     * @throws IllegalArgumentException 排序值和排序条件不匹配
+     */
+    GoodsHits searchAfter(SearchRequest request, Object[] after, int size);
+
+    /**
+     * 批量执行多个分页查询，不统计聚合。单个查询失败时对应的结果中只有failure
+     * @return 和requests一一对应
+     */
+    List<GoodsHits> multiSearch(List<SearchRequest> requests, int size);
+
+    /**
+     * 分类下数值参数的统计值
+     * @return 参数名和{min, max, sum}，没有数据的参数不会返回
+     */
+    Map<String, double[]> stats(Long cid, Set<String> keys);
+
+    /**
+     * 遍历索引中的全部商品，至少包含id、title、brandId、cid3
+     */
+    void forEach(Consumer<Goods> consumer);
+
+    /**
+     * 索引中商品当前的分类和品牌，增量更新前取出，用于失效按原来的分类或品牌缓存的结果
+     * @return spuId和只包含id、brandId、cid3的商品，索引中没有的商品不返回
+     */
+    Map<Long, Goods> getByIds(Collection<Long> ids);
+
+    /**
+     * 增量更新：写入新增或修改的商品，删除下架的商品。全量构建期间同时写入正在构建的索引，
+     * 返回时新数据已经可以搜到
+     * @return 写入失败的spuId
+     */
+    Set<Long> apply(List<Goods> upserts, List<Long> deletes);
+
+    /**
+     * 开始全量构建，之后按页调用{@link #addToRebuild}，最后调用{@link #finishRebuild}或{@link #abortRebuild}
+     * @param resume 是否从上次中断的位置继续，不支持时从头开始
+     * @param listener 每批文档写入后回调
+     * @return 要构建的第一页
+     */
+    int beginRebuild(boolean resume, RebuildListener listener);
+
+    /**
+     * 写入一页全量数据，构建期间已经增量更新过的商品以增量的数据为准
+     */
+    void addToRebuild(List<Goods> goodsList, int page);
+
+    /**
+     * 写完所有页，切换到新构建的索引
+     */
+    void finishRebuild();
+
+    /**
+     * 构建异常终止时调用
+     */
+    void abortRebuild();
+
+    /**
+     * @return 正在构建的索引名，没有时返回null
+     */
+    String getBuildingName();
+
+    /**
+     * 所有版本的索引，新的在前；不保留旧版本时返回空列表
+     */
+    List<IndexVersion> getVersions();
+
+    /**
+     * 切换回上一个版本的索引
+     * @return 切换后的索引，没有更早的版本时返回null
+     */
+    String rollback();
+
+    /**
+     * 删除超出保留数量的旧版本
+     * @return 删除的索引
+     */
+    List<String> cleanup();
+
+    /**
+     * 在每个版本的索引上分别执行同一组规格参数聚合，比较不同规格参数存储方式的聚合耗时
+     * @param cid 聚合的分类
+     * @param facets 要聚合的规格参数
+     * @param runs 每个版本执行的次数
+     * @return 不保留旧版本时返回空列表
+     */
+    List<IndexBenchmark> benchmark(Long cid, FacetOptions facets, int runs);
+
+    /**
+     * 全量构建的写入进度
+     */
+    interface RebuildListener {
+        /**
+         * 一批文档写入完成
+         * @param indexed 写入成功的文档数
+         * @param failed 写入失败的文档数
+         */
+        void onBulk(int indexed, int failed);
+    }
+}
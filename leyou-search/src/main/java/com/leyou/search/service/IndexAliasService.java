@@ -0,0 +1,408 @@
+package com.leyou.search.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.search.config.IndexProperties;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.utils.SpecMapping;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.ElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentEntity;
+import org.springframework.data.elasticsearch.core.query.SearchQuery;
+import org.springframework.data.elasticsearch.core.query.SourceFilter;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 商品索引的版本管理。每次全量构建写入一个新的物理索引goods_yyyyMMddHHmmssSSS，
+ * 构建完成后把读别名(goods)和写别名(goods_write)原子地切换过去，旧索引保留若干个用于回滚
+ */
+@Service
+@EnableConfigurationProperties(IndexProperties.class)
+public class IndexAliasService {
+
+    @Autowired
+    private ElasticsearchTemplate elasticsearchTemplate;
+
+    @Autowired
+    private IndexProperties props;
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexAliasService.class);
+
+    private static final String MAPPING_PATH = "mapping/goods.json";
+
+    private static final String META_SPEC_MAPPING = "specMapping";
+
+    private static final String META_ROUTING = "routing";
+
+    private static final String ROUTING_CATEGORY = "cid3";
+
+    /**
+     * 读别名，也就是Goods上@Document的indexName
+     */
+    private String readAlias;
+
+    private String writeAlias;
+
+    private String indexType;
+
+    /**
+     * 每个索引或别名mapping中_meta的内容，切换别名后清空
+     */
+    private final Map<String, Map<String, Object>> metas = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        ElasticsearchPersistentEntity<Goods> entity = this.elasticsearchTemplate.getPersistentEntityFor(Goods.class);
+        this.readAlias = entity.getIndexName();
+        this.writeAlias = readAlias + "_write";
+        this.indexType = entity.getIndexType();
+    }
+
+    public String getWriteAlias() {
+        return writeAlias;
+    }
+
+    public String getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * 使用elasticsearch时在启动时调用。还没有任何索引时创建第一个版本；
+     * 旧版本直接以goods命名的物理索引，把写别名加在这个索引上，下次全量构建时被替换
+     * @throws IllegalStateException 写别名的名字已经被物理索引占用，这时写入会进入错误的索引，不能继续启动
+     */
+    public synchronized void ensureAliases() {
+        if (!indices().prepareExists(readAlias).get().isExists()) {
+            String index = createIndex(false, Collections.emptyList());
+            indices().prepareAliases().addAlias(index, readAlias).addAlias(index, writeAlias).get();
+            logger.info("创建商品索引{}", index);
+            return;
+        }
+        if (indices().prepareAliasesExist(writeAlias).get().isExists()) {
+            return;
+        }
+        if (indices().prepareExists(writeAlias).get().isExists()) {
+            //之前写入写别名时自动创建出来的物理索引，mapping是动态生成的，需要人工确认后删除
+            throw new IllegalStateException("商品索引" + writeAlias + "是物理索引而不是别名，请确认后删除");
+        }
+        String live = liveIndex();
+        //goods还是物理索引时，写别名直接指向它
+        String target = live == null ? readAlias : live;
+        indices().prepareAliases().addAlias(target, writeAlias).get();
+        logger.info("商品索引{}补上写别名{}", target, writeAlias);
+    }
+
+    /**
+     * 创建新版本的物理索引
+     * @param bulkLoad 是否用于全量构建：关闭refresh、不要副本，构建完成后调用{@link #finishBuild}恢复
+     * @param specs 所有分类的规格参数，用于生成规格参数的字段，之后新增的参数由dynamic_templates兜底
+     * @return 索引名
+     */
+    public String createIndex(boolean bulkLoad, Collection<CategorySpec> specs) {
+        String index = readAlias + "_" + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date());
+        SpecMapping specMapping = SpecMapping.of(props.getSpecMapping());
+        Map<String, Object> meta = new HashMap<>();
+        meta.put(META_SPEC_MAPPING, specMapping.getName());
+        Settings.Builder settings = Settings.builder()
+                .put("index.number_of_shards", props.getShards())
+                .put("index.number_of_replicas", bulkLoad ? 0 : props.getReplicas())
+                .put("index.refresh_interval", bulkLoad ? "-1" : props.getRefreshInterval());
+        if (props.getRouteByCategory()) {
+            meta.put(META_ROUTING, ROUTING_CATEGORY);
+            //一个分类的文档分散到多个分片，避免大分类集中在一个分片上
+            if (props.getRoutingPartitionSize() > 1) {
+                settings.put("index.routing_partition_size", props.getRoutingPartitionSize());
+            }
+        }
+        indices().prepareCreate(index)
+                .setSettings(settings)
+                .addMapping(indexType, buildMapping(specMapping, meta, specs), XContentType.JSON)
+                .get();
+        metas.put(index, meta);
+        return index;
+    }
+
+    /**
+     * 基础mapping加上规格参数部分，_meta中记录规格参数的存储方式和路由方式
+     */
+    private String buildMapping(SpecMapping specMapping, Map<String, Object> meta, Collection<CategorySpec> categorySpecs) {
+        Map<String, Object> mapping = readMapping(MAPPING_PATH);
+        if (specMapping != SpecMapping.DYNAMIC) {
+            Map<String, Object> specs = readMapping("mapping/specs-" + specMapping.getName() + ".json");
+            Map<String, Object> properties = (Map<String, Object>) mapping.get("properties");
+            properties.putAll((Map<String, Object>) specs.remove("properties"));
+            properties.putAll(specMapping.properties(categorySpecs));
+            mapping.putAll(specs);
+        }
+        if (meta.containsKey(META_ROUTING)) {
+            //写入和删除都必须带上路由，否则会落到错误的分片
+            mapping.put("_routing", Collections.singletonMap("required", true));
+        }
+        mapping.put("_meta", meta);
+        return JsonUtils.toString(mapping);
+    }
+
+    private Map<String, Object> readMapping(String path) {
+        return JsonUtils.nativeRead(ElasticsearchTemplate.readFileFromClasspath(path), new TypeReference<Map<String, Object>>() {});
+    }
+
+    /**
+     * 索引使用的规格参数存储方式，从mapping的_meta中读取，没有记录的是旧的动态mapping
+     * @param index 索引名或别名
+     */
+    public SpecMapping getSpecMapping(String index) {
+        return SpecMapping.of((String) getMeta(index).get(META_SPEC_MAPPING));
+    }
+
+    /**
+     * 读别名指向的索引使用的规格参数存储方式，搜索时按这个生成过滤条件和聚合
+     */
+    public SpecMapping getLiveSpecMapping() {
+        return getSpecMapping(readAlias);
+    }
+
+    /**
+     * 索引是否按三级分类路由，是的话写入、删除时必须带上分类id
+     * @param index 索引名或别名
+     */
+    public boolean isRoutedByCategory(String index) {
+        return ROUTING_CATEGORY.equals(getMeta(index).get(META_ROUTING));
+    }
+
+    /**
+     * 在读别名上执行查询。ElasticsearchTemplate查询时不会使用SearchQuery的route，
+     * 这里自己拼装请求，限定了分类且索引按分类路由时只查询分类所在的分片
+     * @param cid 查询限定的三级分类，没有限定时为null
+     */
+    public SearchResponse search(SearchQuery query, Long cid) {
+        return prepareSearch(query, cid).get();
+    }
+
+    /**
+     * 拼装读别名上的查询请求但不执行，可以放进multi search中一起执行
+     */
+    public SearchRequestBuilder prepareSearch(SearchQuery query, Long cid) {
+        return prepareSearch(readAlias, query, cid);
+    }
+
+    /**
+     * 在指定的索引上执行查询，路由按这个索引的方式选择
+     * @param index 索引名或别名
+     */
+    public SearchRequestBuilder prepareSearch(String index, SearchQuery query, Long cid) {
+        SearchRequestBuilder builder = this.elasticsearchTemplate.getClient().prepareSearch(index).setTypes(indexType)
+                .setQuery(query.getQuery());
+        if (query.getFilter() != null) {
+            builder.setPostFilter(query.getFilter());
+        }
+        SourceFilter sourceFilter = query.getSourceFilter();
+        if (sourceFilter != null) {
+            builder.setFetchSource(sourceFilter.getIncludes(), sourceFilter.getExcludes());
+        }
+        Pageable pageable = query.getPageable();
+        if (pageable.isPaged()) {
+            builder.setFrom((int) pageable.getOffset()).setSize(pageable.getPageSize());
+        }
+        if (query.getElasticsearchSorts() != null) {
+            query.getElasticsearchSorts().forEach(builder::addSort);
+        }
+        if (query.getAggregations() != null) {
+            query.getAggregations().forEach(builder::addAggregation);
+        }
+        if (cid != null && isRoutedByCategory(index)) {
+            builder.setRouting(cid.toString());
+        }
+        return builder;
+    }
+
+    private Map<String, Object> getMeta(String index) {
+        return metas.computeIfAbsent(index, name -> {
+            ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> mappings =
+                    indices().prepareGetMappings(name).setTypes(indexType).get().getMappings();
+            for (Iterator<ImmutableOpenMap<String, MappingMetaData>> it = mappings.valuesIt(); it.hasNext(); ) {
+                MappingMetaData mapping = it.next().get(indexType);
+                Object meta = mapping == null ? null : mapping.getSourceAsMap().get("_meta");
+                if (meta instanceof Map) {
+                    return (Map<String, Object>) meta;
+                }
+            }
+            return Collections.emptyMap();
+        });
+    }
+
+    /**
+     * 全量构建完成：合并段、恢复副本和refresh设置
+     */
+    public void finishBuild(String index) {
+        indices().prepareRefresh(index).get();
+        indices().prepareForceMerge(index).setMaxNumSegments(1).get();
+        indices().prepareUpdateSettings(index).setSettings(Settings.builder()
+                .put("index.number_of_replicas", props.getReplicas())
+                .put("index.refresh_interval", props.getRefreshInterval()))
+                .get();
+        //等副本分配完成再切换别名，单节点时副本无法分配，只等待主分片
+        this.elasticsearchTemplate.getClient().admin().cluster().prepareHealth(index)
+                .setWaitForYellowStatus().setTimeout(TimeValue.timeValueMinutes(5)).get();
+    }
+
+    /**
+     * 把读写别名原子地切换到指定索引
+     */
+    public synchronized void swap(String index) {
+        String live = liveIndex();
+        IndicesAliasesRequestBuilder request = indices().prepareAliases();
+        if (live == null) {
+            //旧版本直接以goods命名的物理索引，删除后才能把goods用作别名
+            request.removeIndex(readAlias);
+        } else {
+            request.removeAlias(live, readAlias).removeAlias(live, writeAlias);
+        }
+        request.addAlias(index, readAlias).addAlias(index, writeAlias).get();
+        metas.remove(readAlias);
+        metas.remove(writeAlias);
+        logger.info("商品索引别名从{}切换到{}", live == null ? readAlias : live, index);
+    }
+
+    /**
+     * 切换回上一个版本的索引
+     * @return 切换后的索引，没有更早的版本时返回null
+     */
+    public synchronized String rollback() {
+        String live = liveIndex();
+        if (live == null) {
+            return null;
+        }
+        Optional<String> previous = listIndices().stream().filter(name -> name.compareTo(live) < 0)
+                .max(Comparator.naturalOrder());
+        previous.ifPresent(this::swap);
+        return previous.orElse(null);
+    }
+
+    /**
+     * 删除比当前版本旧、且超出保留数量的索引
+     * @param exclude 不能删除的索引，例如正在构建的
+     * @return 删除的索引
+     */
+    public synchronized List<String> cleanup(String exclude) {
+        String live = liveIndex();
+        if (live == null) {
+            return Collections.emptyList();
+        }
+        List<String> old = listIndices().stream()
+                .filter(name -> name.compareTo(live) < 0 && !name.equals(exclude))
+                .sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList());
+        List<String> deleted = old.subList(Math.min(old.size(), props.getKeepVersions()), old.size());
+        if (!deleted.isEmpty()) {
+            indices().prepareDelete(deleted.toArray(new String[0])).get();
+            logger.info("删除旧的商品索引{}", deleted);
+        }
+        return new ArrayList<>(deleted);
+    }
+
+    public void deleteIndex(String index) {
+        if (indexExists(index)) {
+            indices().prepareDelete(index).get();
+        }
+    }
+
+    public boolean indexExists(String index) {
+        return index != null && indices().prepareExists(index).get().isExists();
+    }
+
+    /**
+     * 所有版本的索引，新的在前
+     */
+    public List<IndexVersion> getVersions(String building) {
+        String live = liveIndex();
+        List<String> names = listIndices();
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, IndexStats> stats = indices().prepareStats(names.toArray(new String[0])).setDocs(true).setStore(true).get().getIndices();
+        ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> mappings =
+                indices().prepareGetMappings(names.toArray(new String[0])).setTypes(indexType).get().getMappings();
+        List<IndexVersion> versions = new ArrayList<>();
+        for (String name : names) {
+            IndexVersion version = new IndexVersion();
+            version.setName(name);
+            IndexStats stat = stats.get(name);
+            version.setDocs(stat == null || stat.getPrimaries().getDocs() == null ? 0L : stat.getPrimaries().getDocs().getCount());
+            version.setSizeBytes(stat == null || stat.getPrimaries().getStore() == null ? 0L : stat.getPrimaries().getStore().getSizeInBytes());
+            MappingMetaData mapping = mappings.get(name) == null ? null : mappings.get(name).get(indexType);
+            version.setSpecMapping(getSpecMapping(name).getName());
+            version.setRoutedByCategory(isRoutedByCategory(name));
+            version.setShards(stat == null ? 0 : stat.getIndexShards().size());
+            version.setFieldCount(mapping == null ? 0 : countFields(mapping.getSourceAsMap()));
+            version.setLive(name.equals(live));
+            version.setBuilding(name.equals(building));
+            versions.add(version);
+        }
+        versions.sort(Comparator.comparing(IndexVersion::getName).reversed());
+        return versions;
+    }
+
+    /**
+     * mapping中的字段数，包括子字段，对应index.mapping.total_fields.limit的计数
+     */
+    private int countFields(Map<String, Object> mapping) {
+        int count = 0;
+        Object properties = mapping.get("properties");
+        if (properties instanceof Map) {
+            for (Object field : ((Map<?, ?>) properties).values()) {
+                count += 1 + countFields((Map<String, Object>) field);
+            }
+        }
+        Object fields = mapping.get("fields");
+        if (fields instanceof Map) {
+            count += ((Map<?, ?>) fields).size();
+        }
+        return count;
+    }
+
+    /**
+     * 读别名当前指向的索引，goods还是物理索引时返回null
+     */
+    private String liveIndex() {
+        ImmutableOpenMap<String, List<AliasMetaData>> aliases = indices().prepareGetAliases(readAlias).get().getAliases();
+        for (Iterator<String> it = aliases.keysIt(); it.hasNext(); ) {
+            String index = it.next();
+            if (!aliases.get(index).isEmpty()) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private List<String> listIndices() {
+        String[] names = indices().prepareGetIndex().addIndices(readAlias + "_*").get().getIndices();
+        return Arrays.stream(names).filter(name -> !name.equals(writeAlias)).sorted().collect(Collectors.toList());
+    }
+
+    private IndicesAdminClient indices() {
+        return this.elasticsearchTemplate.getClient().admin().indices();
+    }
+}
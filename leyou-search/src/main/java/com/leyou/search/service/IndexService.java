@@ -0,0 +1,454 @@
+package com.leyou.search.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.leyou.common.pojo.PageResult;
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.item.pojo.Brand;
+import com.leyou.item.pojo.Sku;
+import com.leyou.item.pojo.Spu;
+import com.leyou.item.pojo.SpuBo;
+import com.leyou.item.pojo.SpuDetail;
+import com.leyou.search.client.BrandClient;
+import com.leyou.search.client.CategoryClient;
+import com.leyou.search.client.GoodsClient;
+import com.leyou.search.config.IndexProperties;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.FacetOptions;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.IndexBenchmark;
+import com.leyou.search.pojo.IndexProgress;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.pojo.SkuSummary;
+import feign.FeignException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 商品索引的构建：全量构建时分页拉取spu，并发查询sku、详情、分类和品牌，组装成Goods后交给搜索引擎写入；
+ * 增量更新复用同样的构建逻辑。写入后负责让搜索结果缓存、规格参数区间和输入提示跟着更新
+ */
+@Service
+@EnableConfigurationProperties(IndexProperties.class)
+public class IndexService {
+
+    @Autowired
+    private GoodsClient goodsClient;
+
+    @Autowired
+    private CategoryClient categoryClient;
+
+    @Autowired
+    private BrandClient brandClient;
+
+    @Autowired
+    private IndexProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private SpecIntervalService specIntervalService;
+
+    @Autowired
+    private SpecTemplateService specTemplateService;
+
+    @Autowired
+    private SearchCacheService searchCacheService;
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private SuggestService suggestService;
+
+    @Autowired
+    private GoodsSearchEngine searchEngine;
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexService.class);
+
+    /**
+     * 拉取商品信息的线程池，线程数即并发上限，队列满时由调用线程自己执行
+     */
+    private ThreadPoolExecutor fetchExecutor;
+
+    /**
+     * 全量构建任务在单独的线程中执行，同一时刻只允许一个
+     */
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "goods-index-rebuild"));
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    //进度信息
+    private final AtomicInteger startPage = new AtomicInteger();
+    private final AtomicInteger currentPage = new AtomicInteger();
+    private final AtomicInteger totalPage = new AtomicInteger();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile String error;
+
+    //指标
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        int threads = props.getConcurrency();
+        this.fetchExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "goods-index-fetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        this.failedCounter = Counter.builder("search.index.docs").tag("result", "failed")
+                .description("构建或写入失败的商品文档数").register(meterRegistry);
+        meterRegistry.gauge("search.index.throughput", this, s -> s.docsPerSecond());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        this.rebuildExecutor.shutdownNow();
+        this.fetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 启动全量构建
+     * @param resume 是否从上次的检查点继续
+     * @return 已有构建任务在执行时返回false
+     */
+    public boolean rebuild(boolean resume) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        startPage.set(0);
+        currentPage.set(0);
+        totalPage.set(0);
+        total.set(0);
+        indexed.set(0);
+        failed.set(0);
+        bulkRequests.set(0);
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        error = null;
+        try {
+            rebuildExecutor.execute(() -> {
+                try {
+                    doRebuild(resume);
+                    logger.info("商品索引构建完成，共写入{}条，失败{}条，耗时{}ms", indexed.get(), failed.get(),
+                            System.currentTimeMillis() - startTime);
+                } catch (Exception e) {
+                    logger.error("商品索引构建异常终止，停止在第{}页", currentPage.get(), e);
+                    error = e.getMessage();
+                } finally {
+                    endTime = System.currentTimeMillis();
+                    running.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    public IndexProgress getProgress() {
+        IndexProgress progress = new IndexProgress();
+        progress.setRunning(running.get());
+        progress.setStartPage(startPage.get());
+        progress.setCurrentPage(currentPage.get());
+        progress.setTotalPage(totalPage.get());
+        progress.setTotal(total.get());
+        progress.setIndexed(indexed.get());
+        progress.setFailed(failed.get());
+        progress.setBulkRequests(bulkRequests.get());
+        progress.setDocsPerSecond(docsPerSecond());
+        progress.setStartTime(startTime == 0 ? null : startTime);
+        progress.setEndTime(endTime == 0 ? null : endTime);
+        progress.setError(error);
+        progress.setIndexName(this.searchEngine.getBuildingName());
+        return progress;
+    }
+
+    public List<IndexVersion> getVersions() {
+        return this.searchEngine.getVersions();
+    }
+
+    /**
+     * 在每个版本的索引上执行分类下全部规格参数的聚合，比较不同规格参数存储方式的索引大小和聚合耗时
+     * @param cid 三级分类id
+     * @param runs 每个版本执行的次数
+     */
+    public List<IndexBenchmark> benchmark(Long cid, int runs) {
+        CategorySpec specParams = this.specTemplateService.getCategorySpec(cid);
+        FacetOptions facets = new FacetOptions();
+        facets.setSpecParams(specParams);
+        facets.setNumericalInterval(this.specIntervalService.loadIntervals(cid, specParams.getNumericalUnits().keySet()));
+        return this.searchEngine.benchmark(cid, facets, runs);
+    }
+
+    /**
+     * 回滚到上一个版本的索引，回滚后搜索结果和输入提示都要重新生成
+     * @return 切换后的索引，没有更早的版本时返回null
+     */
+    public String rollback() {
+        String index = this.searchEngine.rollback();
+        if (index != null) {
+            this.specIntervalService.refreshAllAsync();
+            this.searchCacheService.invalidateAll();
+            this.searchService.invalidateCategoryFacets(null);
+            this.suggestService.reload();
+        }
+        return index;
+    }
+
+    public List<String> cleanup() {
+        return this.searchEngine.cleanup();
+    }
+
+    private double docsPerSecond() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+        return indexed.get() * 1000.0d / Math.max(1, end - startTime);
+    }
+
+    private void doRebuild(boolean resume) {
+        //1.断点续建时从上次的检查点继续，否则写入新版本的索引
+        int first = this.searchEngine.beginRebuild(resume, (ok, failures) -> {
+            bulkRequests.incrementAndGet();
+            indexed.addAndGet(ok);
+            failed.addAndGet(failures);
+        });
+        startPage.set(first);
+        currentPage.set(first);
+        boolean finished = false;
+        try {
+            int rows = props.getPageSize();
+            int page = first;
+            while (true) {
+                currentPage.set(page);
+                //2.分页查询上架的spu
+                PageResult<SpuBo> result = querySpuByPage(page, rows);
+                if (result == null || CollectionUtils.isEmpty(result.getItems())) {
+                    break;
+                }
+                total.set(result.getTotal());
+                totalPage.set((int) ((result.getTotal() + rows - 1) / rows));
+                //3.并发构建本页的goods
+                List<Goods> goodsList = buildGoods(result.getItems());
+                failed.addAndGet(result.getItems().size() - goodsList.size());
+                //4.写入正在构建的索引
+                this.searchEngine.addToRebuild(goodsList, page);
+                if (page >= totalPage.get()) {
+                    break;
+                }
+                page++;
+            }
+            //5.切换到新构建的索引
+            this.searchEngine.finishRebuild();
+            finished = true;
+        } finally {
+            if (!finished) {
+                this.searchEngine.abortRebuild();
+            }
+        }
+        //数据分布变了，重新计算规格参数的区间
+        this.specIntervalService.refreshAll();
+        this.searchCacheService.invalidateAll();
+        this.searchService.invalidateCategoryFacets(null);
+        this.suggestService.reload();
+    }
+
+    private PageResult<SpuBo> querySpuByPage(int page, int rows) {
+        try {
+            return this.goodsClient.querySpuByPage(page, rows, true, null);
+        } catch (FeignException e) {
+            //商品微服务在没有数据时返回404
+            if (e.status() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 并发构建一批goods，构建失败的spu会被跳过并计入失败数
+     */
+    public List<Goods> buildGoods(List<? extends Spu> spus) {
+        if (spus.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //一批spu的sku一次查询，按spuId分组
+        List<Long> ids = spus.stream().map(Spu::getId).collect(Collectors.toList());
+        CompletableFuture<Map<Long, List<Sku>>> skus = fetch(() -> this.goodsClient.querySkuBySpuIds(ids))
+                .thenApply(list -> list == null ? Collections.<Long, List<Sku>>emptyMap()
+                        : list.stream().collect(Collectors.groupingBy(Sku::getSpuId)));
+        List<CompletableFuture<Goods>> futures = spus.stream().map(spu -> buildGoodsAsync(spu,
+                skus.thenApply(map -> map.get(spu.getId()))).exceptionally(e -> {
+            logger.error("构建商品索引失败，spuId：{}", spu.getId(), e);
+            failedCounter.increment();
+            return null;
+        })).collect(Collectors.toList());
+        return futures.stream().map(CompletableFuture::join).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * sku、详情、分类名称、品牌四个查询互不依赖，并发执行
+     * @param skus 整批一起查询的sku中属于这个spu的部分
+     */
+    private CompletableFuture<Goods> buildGoodsAsync(Spu spu, CompletableFuture<List<Sku>> skus) {
+        CompletableFuture<SpuDetail> detail = fetch(() -> this.goodsClient.querySpuDetailById(spu.getId()));
+        CompletableFuture<List<String>> names = fetch(() ->
+                this.categoryClient.queryNameByIds(Arrays.asList(spu.getCid1(), spu.getCid2(), spu.getCid3())));
+        CompletableFuture<List<Brand>> brands = fetch(() ->
+                this.brandClient.queryBrandByIds(Collections.singletonList(spu.getBrandId())));
+        return CompletableFuture.allOf(skus, detail, names, brands)
+                .thenApply(v -> buildGoods(spu, skus.join(), detail.join(), names.join(), brands.join()));
+    }
+
+    /**
+     * 在拉取线程池中执行远程调用，404视为没有数据
+     */
+    <T> CompletableFuture<T> fetch(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return supplier.get();
+            } catch (FeignException e) {
+                if (e.status() == 404) {
+                    return null;
+                }
+                throw e;
+            }
+        }, fetchExecutor);
+    }
+
+    private Goods buildGoods(Spu spu, List<Sku> skus, SpuDetail detail, List<String> names, List<Brand> brands) {
+        Goods goods = new Goods();
+        goods.setId(spu.getId());
+        goods.setTitle(spu.getTitle());
+        goods.setSubTitle(spu.getSubTitle());
+        goods.setBrandId(spu.getBrandId());
+        goods.setCid1(spu.getCid1());
+        goods.setCid2(spu.getCid2());
+        goods.setCid3(spu.getCid3());
+        goods.setCreateTime(spu.getCreateTime());
+        //1.搜索字段：标题、分类名称、品牌名称
+        String brandName = CollectionUtils.isEmpty(brands) ? "" : brands.get(0).getName();
+        goods.setAll(spu.getTitle() + " " + StringUtils.join(names == null ? Collections.emptyList() : names, " ") + " " + brandName);
+        //2.sku的价格集合，以及列表页展示的前几个sku的摘要
+        List<Long> prices = new ArrayList<>();
+        List<SkuSummary> skuList = new ArrayList<>();
+        if (skus != null) {
+            for (Sku sku : skus) {
+                prices.add(sku.getPrice());
+                if (skuList.size() >= props.getSkuSummaryLimit()) {
+                    continue;
+                }
+                SkuSummary summary = new SkuSummary();
+                summary.setId(sku.getId());
+                summary.setTitle(sku.getTitle());
+                summary.setPrice(sku.getPrice());
+                //只取第一张图片
+                summary.setImage(StringUtils.isBlank(sku.getImages()) ? "" : StringUtils.split(sku.getImages(), ",")[0]);
+                skuList.add(summary);
+            }
+        }
+        goods.setPrice(prices);
+        goods.setSkus(skuList);
+        goods.setSkuCount(skus == null ? 0 : skus.size());
+        //3.可搜索的规格参数
+        goods.setSpecs(buildSpecs(detail));
+        return goods;
+    }
+
+    private Map<String, Object> buildSpecs(SpuDetail detail) {
+        Map<String, Object> specs = new HashMap<>();
+        if (detail == null || StringUtils.isBlank(detail.getSpecifications())) {
+            return specs;
+        }
+        List<Map<String, Object>> groups = JsonUtils.nativeRead(detail.getSpecifications(),
+                new TypeReference<List<Map<String, Object>>>() {
+                });
+        if (groups == null) {
+            return specs;
+        }
+        for (Map<String, Object> group : groups) {
+            List<Map<String, Object>> params = (List<Map<String, Object>>) group.get("params");
+            if (params == null) {
+                continue;
+            }
+            for (Map<String, Object> param : params) {
+                if (!Boolean.TRUE.equals(param.get("searchable"))) {
+                    continue;
+                }
+                String k = param.get("k").toString();
+                Object v = param.get("v");
+                if (v != null) {
+                    //数值类型的参数存为数字，才能做stats和histogram聚合
+                    specs.put(k, Boolean.TRUE.equals(param.get("numerical")) ? toNumber(v) : v);
+                } else if (param.get("options") != null) {
+                    //sku特有的规格参数，取所有可选值
+                    specs.put(k, param.get("options"));
+                }
+            }
+        }
+        return specs;
+    }
+
+    private Object toNumber(Object v) {
+        if (v instanceof Number) {
+            return v;
+        }
+        try {
+            return Double.valueOf(v.toString().trim());
+        } catch (NumberFormatException e) {
+            return v;
+        }
+    }
+
+    /**
+     * 增量更新：新增或修改的goods写入索引，下架的spu从索引中删除
+     * @return 写入失败的spuId
+     */
+    public Set<Long> applyChanges(List<Goods> upserts, List<Long> deletes) {
+        //修改前的分类和品牌，商品换了分类或品牌时按原来的条件缓存的结果也要失效
+        Map<Long, Goods> previous = null;
+        try {
+            previous = upserts.isEmpty() ? Collections.emptyMap()
+                    : this.searchEngine.getByIds(upserts.stream().map(Goods::getId).collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            logger.warn("查询商品原来的分类和品牌失败：{}", e.getMessage());
+        }
+        Set<Long> failures = this.searchEngine.apply(upserts, deletes);
+        //写入的文档已经可以搜到，可能受影响的搜索结果失效
+        this.searchCacheService.invalidate(upserts, deletes, previous);
+        this.suggestService.update(upserts, deletes);
+        return failures;
+    }
+}
@@ -0,0 +1,178 @@
+package com.leyou.search.service;
+
+import com.leyou.item.pojo.IndexOutbox;
+import com.leyou.item.pojo.Spu;
+import com.leyou.search.client.GoodsClient;
+import com.leyou.search.client.IndexOutboxClient;
+import com.leyou.search.config.IndexProperties;
+import com.leyou.search.pojo.Goods;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 增量索引：拉取商品微服务在修改商品时写入的变更事件，只重建发生变化的spu
+ */
+@Service
+public class IndexSyncService {
+
+    @Autowired
+    private IndexOutboxClient indexOutboxClient;
+
+    @Autowired
+    private GoodsClient goodsClient;
+
+    @Autowired
+    private IndexService indexService;
+
+    @Autowired
+    private IndexProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexSyncService.class);
+
+    /**
+     * 最近一次拉取时最早的未处理事件的时间，没有积压时为0
+     */
+    private volatile long oldestPendingTime;
+
+    /**
+     * 最近一次拉取时未处理的事件总数
+     */
+    private volatile int pending;
+
+    private Counter upsertCounter;
+    private Counter deleteCounter;
+    private Timer delayTimer;
+
+    @PostConstruct
+    public void init() {
+        this.upsertCounter = Counter.builder("search.sync.docs").tag("op", "upsert")
+                .description("增量更新的商品文档数").register(meterRegistry);
+        this.deleteCounter = Counter.builder("search.sync.docs").tag("op", "delete")
+                .description("增量删除的商品文档数").register(meterRegistry);
+        this.delayTimer = Timer.builder("search.sync.delay")
+                .description("商品修改到索引更新完成的延迟").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        meterRegistry.gauge("search.sync.lag.seconds", this, s -> s.lagSeconds());
+        meterRegistry.gauge("search.sync.pending", this, s -> s.pending);
+    }
+
+    /**
+     * 当前积压的时长，超过阈值时应报警
+     */
+    public double lagSeconds() {
+        long oldest = oldestPendingTime;
+        return oldest == 0 ? 0 : (System.currentTimeMillis() - oldest) / 1000.0d;
+    }
+
+    @Scheduled(fixedDelayString = "${ly.search.index.sync-interval:1000}")
+    public void sync() {
+        if (!props.getSyncEnabled()) {
+            return;
+        }
+        //1.拉取待处理的事件
+        List<IndexOutbox> events;
+        try {
+            events = this.indexOutboxClient.queryPending(props.getSyncBatchSize());
+        } catch (Exception e) {
+            logger.warn("拉取商品变更事件失败：{}", e.getMessage());
+            return;
+        }
+        if (CollectionUtils.isEmpty(events)) {
+            pending = 0;
+            oldestPendingTime = 0;
+            return;
+        }
+        pending = countPending(events.size());
+        oldestPendingTime = events.get(0).getCreateTime().getTime();
+
+        //2.同一批中的同一个spu只处理一次
+        Set<Long> spuIds = events.stream().map(IndexOutbox::getSpuId).collect(Collectors.toCollection(LinkedHashSet::new));
+        Set<Long> failures = apply(spuIds);
+
+        //3.确认处理成功的事件，失败的留到下次重试
+        List<Long> ackIds = events.stream().filter(e -> !failures.contains(e.getSpuId()))
+                .map(IndexOutbox::getId).collect(Collectors.toList());
+        if (ackIds.isEmpty()) {
+            return;
+        }
+        try {
+            this.indexOutboxClient.ack(ackIds);
+        } catch (Exception e) {
+            //没有确认的事件下次会再处理一次，重复处理不影响结果
+            logger.warn("确认商品变更事件失败，共{}条：{}", ackIds.size(), e.getMessage());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        events.stream().filter(e -> !failures.contains(e.getSpuId()))
+                .forEach(e -> delayTimer.record(now - e.getCreateTime().getTime(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 没有取满一批时拉取到的就是全部积压，取满时再查询总数
+     */
+    private int countPending(int polled) {
+        if (polled < props.getSyncBatchSize()) {
+            return polled;
+        }
+        try {
+            Integer count = this.indexOutboxClient.queryPendingCount();
+            return count == null ? polled : count;
+        } catch (Exception e) {
+            logger.warn("查询商品变更事件总数失败：{}", e.getMessage());
+            return polled;
+        }
+    }
+
+    /**
+     * 重建或删除指定spu的索引
+     * @return 处理失败的spuId
+     */
+    private Set<Long> apply(Set<Long> spuIds) {
+        Set<Long> failures = new HashSet<>();
+        //1.并发查询spu最新状态
+        Map<Long, CompletableFuture<Spu>> futures = new LinkedHashMap<>();
+        for (Long spuId : spuIds) {
+            futures.put(spuId, this.indexService.fetch(() -> this.goodsClient.querySpuById(spuId)));
+        }
+        List<Spu> upserts = new ArrayList<>();
+        List<Long> deletes = new ArrayList<>();
+        futures.forEach((spuId, future) -> {
+            try {
+                Spu spu = future.join();
+                //已删除或下架的商品从索引中删除
+                if (spu == null || !Boolean.TRUE.equals(spu.getSaleable()) || Boolean.FALSE.equals(spu.getValid())) {
+                    deletes.add(spuId);
+                } else {
+                    upserts.add(spu);
+                }
+            } catch (Exception e) {
+                logger.warn("查询spu失败，spuId：{}", spuId, e);
+                failures.add(spuId);
+            }
+        });
+        //2.重建goods，构建失败的也要重试
+        List<Goods> goodsList = this.indexService.buildGoods(upserts);
+        Set<Long> built = goodsList.stream().map(Goods::getId).collect(Collectors.toSet());
+        upserts.stream().map(Spu::getId).filter(id -> !built.contains(id)).forEach(failures::add);
+        //3.批量写入
+        failures.addAll(this.indexService.applyChanges(goodsList, deletes));
+        upsertCounter.increment(goodsList.stream().filter(g -> !failures.contains(g.getId())).count());
+        deleteCounter.increment(deletes.stream().filter(id -> !failures.contains(id)).count());
+        return failures;
+    }
+}
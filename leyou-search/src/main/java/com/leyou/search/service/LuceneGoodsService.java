@@ -0,0 +1,859 @@
+package com.leyou.search.service;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.common.utils.NumberUtils;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.FacetOptions;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.GoodsHits;
+import com.leyou.search.pojo.IndexBenchmark;
+import com.leyou.search.pojo.IndexVersion;
+import com.leyou.search.pojo.SearchRequest;
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * 内嵌的Lucene商品索引，ly.search.engine=lucene时代替elasticsearch，单机部署和本地调试不需要再启动elasticsearch。
+ * 索引放在本地目录中用MMapDirectory读取，查询条件、排序、分页和分类/品牌/规格参数的聚合与elasticsearch的结果保持一致。
+ * 和别名切换一样，全量构建写入一个新目录，完成后再替换正在使用的目录
+ */
+@Service
+@ConditionalOnProperty(name = "ly.search.engine", havingValue = SearchProperties.ENGINE_LUCENE)
+@EnableConfigurationProperties(SearchProperties.class)
+public class LuceneGoodsService implements GoodsSearchEngine {
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private SpecTemplateService specTemplateService;
+
+    private static final Logger logger = LoggerFactory.getLogger(LuceneGoodsService.class);
+
+    /**
+     * 记录当前使用的索引目录名
+     */
+    private static final String CURRENT_FILE = "current";
+
+    private static final String ID = "id";
+    private static final String SOURCE = "source";
+    private static final String ALL = "all";
+    private static final String CID3 = "cid3";
+    private static final String BRAND_ID = "brandId";
+    private static final String PRICE = "price";
+    private static final String CREATE_TIME = "createTime";
+
+    /**
+     * 字符串和数值类型规格参数的字段前缀
+     */
+    private static final String KEYWORD_PREFIX = "spec.";
+    private static final String NUMBER_PREFIX = "specn.";
+
+    /**
+     * 字符串规格参数最多返回的选项数，与elasticsearch terms聚合的默认值相同
+     */
+    private static final int TERMS_SIZE = 10;
+
+    private Analyzer analyzer;
+
+    private Path basePath;
+
+    private volatile Store live;
+
+    private volatile Store building;
+
+    /**
+     * 全量构建期间增量修改过的商品，构建时不再用旧数据覆盖
+     */
+    private final Set<Long> touchedDuringBuild = new HashSet<>();
+
+    private RebuildListener rebuildListener;
+
+    @PostConstruct
+    public void init() throws IOException {
+        this.analyzer = new CJKAnalyzer();
+        this.basePath = Paths.get(props.getLucenePath());
+        Files.createDirectories(basePath);
+        Path current = basePath.resolve(CURRENT_FILE);
+        String name = Files.exists(current) ? new String(Files.readAllBytes(current), StandardCharsets.UTF_8).trim() : null;
+        if (StringUtils.isBlank(name) || !Files.isDirectory(basePath.resolve(name))) {
+            name = newStoreName();
+        }
+        this.live = new Store(basePath.resolve(name));
+        writeCurrent(name);
+        //上次没有完成的构建目录
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(basePath, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                if (!dir.getFileName().toString().equals(name)) {
+                    IOUtils.rm(dir);
+                }
+            }
+        }
+        logger.info("Lucene商品索引：{}，商品{}个", live.path, count());
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        Store store = this.building;
+        if (store != null) {
+            store.close();
+        }
+        this.live.close();
+    }
+
+    @Override
+    public Map<Long, Goods> getByIds(Collection<Long> ids) {
+        return withSearcher(searcher -> {
+            Map<Long, Goods> found = new HashMap<>();
+            for (Long id : ids) {
+                TopDocs topDocs = searcher.search(new TermQuery(idTerm(id)), 1);
+                if (topDocs.scoreDocs.length > 0) {
+                    Goods source = JsonUtils.toBean(searcher.doc(topDocs.scoreDocs[0].doc).get(SOURCE), Goods.class);
+                    Goods goods = new Goods();
+                    goods.setId(id);
+                    goods.setBrandId(source.getBrandId());
+                    goods.setCid3(source.getCid3());
+                    found.put(id, goods);
+                }
+            }
+            return found;
+        });
+    }
+
+    /**
+     * 增量更新，构建期间同时写入正在构建的目录。写入失败时抛出异常，不会只写入一部分
+     */
+    @Override
+    public synchronized Set<Long> apply(List<Goods> upserts, List<Long> deletes) {
+        try {
+            for (Store store : targets()) {
+                for (Goods goods : upserts) {
+                    store.writer.updateDocument(idTerm(goods.getId()), toDocument(goods));
+                }
+                for (Long id : deletes) {
+                    store.writer.deleteDocuments(idTerm(id));
+                }
+            }
+            if (building != null) {
+                upserts.forEach(goods -> touchedDuringBuild.add(goods.getId()));
+                touchedDuringBuild.addAll(deletes);
+            }
+            live.writer.commit();
+            live.manager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * 开始全量构建，写入一个新的空目录，不支持断点续建
+     */
+    @Override
+    public synchronized int beginRebuild(boolean resume, RebuildListener listener) {
+        if (building != null) {
+            abortRebuild();
+        }
+        try {
+            this.building = new Store(basePath.resolve(newStoreName()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        touchedDuringBuild.clear();
+        this.rebuildListener = listener;
+        logger.info("开始构建Lucene商品索引{}", building.path);
+        return 1;
+    }
+
+    @Override
+    public synchronized void addToRebuild(List<Goods> goodsList, int page) {
+        try {
+            for (Goods goods : goodsList) {
+                if (!touchedDuringBuild.contains(goods.getId())) {
+                    building.writer.updateDocument(idTerm(goods.getId()), toDocument(goods));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        rebuildListener.onBulk(goodsList.size(), 0);
+    }
+
+    /**
+     * 合并成一个段后替换正在使用的目录，删除旧目录
+     */
+    @Override
+    public synchronized void finishRebuild() {
+        Store old = this.live;
+        try {
+            building.writer.forceMerge(1);
+            building.writer.commit();
+            building.manager.maybeRefreshBlocking();
+            writeCurrent(building.path.getFileName().toString());
+            this.live = building;
+            this.building = null;
+            this.rebuildListener = null;
+            touchedDuringBuild.clear();
+            //正在执行的查询持有旧目录的searcher，关闭后仍然可以读完
+            old.close();
+            IOUtils.rm(old.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 构建失败时删除正在构建的目录，继续使用原来的目录
+     */
+    @Override
+    public synchronized void abortRebuild() {
+        Store store = this.building;
+        if (store == null) {
+            return;
+        }
+        this.building = null;
+        this.rebuildListener = null;
+        touchedDuringBuild.clear();
+        try {
+            store.close();
+            IOUtils.rm(store.path);
+        } catch (IOException e) {
+            logger.warn("删除未完成的Lucene索引目录失败：{}", store.path, e);
+        }
+    }
+
+    @Override
+    public String getBuildingName() {
+        Store store = this.building;
+        return store == null ? null : store.path.getFileName().toString();
+    }
+
+    /**
+     * 本地索引不保留旧版本
+     */
+    @Override
+    public List<IndexVersion> getVersions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<IndexBenchmark> benchmark(Long cid, FacetOptions facets, int runs) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String rollback() {
+        return null;
+    }
+
+    @Override
+    public List<String> cleanup() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 按页码分页查询，返回的商品只包含列表页需要的字段。分类和品牌在同一次遍历中统计，规格参数单独遍历一次
+     */
+    @Override
+    public GoodsHits search(SearchRequest request, int page, int size, FacetOptions facets) {
+        GoodsHits hits = size > 0
+                ? query(request, searcher -> searcher.search(fullQuery(request), page * size, sort(request)), (page - 1) * size)
+                : new GoodsHits(withSearcher(searcher -> searcher.count(fullQuery(request))), Collections.emptyList());
+        if (facets.getCategorySize() > 0 || facets.getBrandSize() > 0) {
+            facets(request, facets, hits);
+        }
+        if (facets.getSpecParams() != null) {
+            specFacets(request, facets.getSpecParams(), facets.getNumericalInterval(), hits);
+        }
+        return hits;
+    }
+
+    /**
+     * 没有网络往返，逐个执行
+     */
+    @Override
+    public List<GoodsHits> multiSearch(List<SearchRequest> requests, int size) {
+        List<GoodsHits> results = new ArrayList<>(requests.size());
+        for (SearchRequest request : requests) {
+            try {
+                results.add(search(request, request.getPage(), size, FacetOptions.none()));
+            } catch (RuntimeException e) {
+                results.add(GoodsHits.failed(e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public GoodsHits searchAfter(SearchRequest request, Object[] after, int size) {
+        Sort sort = sort(request);
+        Object[] sortValues = after == null ? null : toSortValues(sort, after);
+        return query(request, searcher -> {
+            //排序值中有唯一的id，doc只用于跳过排序值完全相同的上一页最后一条
+            FieldDoc afterDoc = sortValues == null ? null
+                    : new FieldDoc(searcher.getIndexReader().maxDoc() - 1, Float.NaN, sortValues);
+            return searcher.searchAfter(afterDoc, fullQuery(request), size, sort);
+        }, 0);
+    }
+
+    /**
+     * 分类和品牌的聚合，与elasticsearch一样只统计满足所有规格参数过滤条件的商品，按商品数从多到少取前几个
+     */
+    private void facets(SearchRequest request, FacetOptions options, GoodsHits hits) {
+        List<SpecFilter> filters = specFilters(request);
+        LongIntHashMap categoryCounts = new LongIntHashMap();
+        LongIntHashMap brandCounts = new LongIntHashMap();
+        collect(basicQuery(request), new FilteredCollector(filters) {
+            private NumericDocValues cid3;
+            private NumericDocValues brandId;
+
+            @Override
+            protected void setReader(LeafReader reader) throws IOException {
+                cid3 = DocValues.getNumeric(reader, CID3);
+                brandId = DocValues.getNumeric(reader, BRAND_ID);
+            }
+
+            @Override
+            protected void accept(int doc, String failedKey) throws IOException {
+                if (failedKey != null) {
+                    return;
+                }
+                if (cid3.advanceExact(doc)) {
+                    categoryCounts.addTo(cid3.longValue(), 1);
+                }
+                if (brandId.advanceExact(doc)) {
+                    brandCounts.addTo(brandId.longValue(), 1);
+                }
+            }
+        });
+        if (options.getCategorySize() > 0) {
+            hits.setCategoryIds(topTerms(categoryCounts, options.getCategorySize()));
+        }
+        if (options.getBrandSize() > 0) {
+            hits.setBrandIds(topTerms(brandCounts, options.getBrandSize()));
+        }
+    }
+
+    /**
+     * 规格参数的聚合，每个参数只应用其它参数的过滤条件。
+     * 数值类型按区间大小分桶，返回每个桶的起始值；字符串类型按商品数取前10个
+     */
+    private void specFacets(SearchRequest request, CategorySpec specParams, Map<String, Double> numericalInterval, GoodsHits hits) {
+        List<SpecFilter> filters = specFilters(request);
+        Map<String, TreeSet<Double>> buckets = new LinkedHashMap<>();
+        numericalInterval.keySet().forEach(key -> buckets.put(key, new TreeSet<>()));
+        Map<String, Map<String, Integer>> termCounts = new LinkedHashMap<>();
+        specParams.getStrSpec().forEach(key -> termCounts.put(key, new HashMap<>()));
+        collect(basicQuery(request), new FilteredCollector(filters) {
+            private final Map<String, SortedNumericDocValues> numbers = new HashMap<>();
+            private final Map<String, SortedSetDocValues> keywords = new HashMap<>();
+
+            @Override
+            protected void setReader(LeafReader reader) throws IOException {
+                for (String key : buckets.keySet()) {
+                    numbers.put(key, DocValues.getSortedNumeric(reader, NUMBER_PREFIX + key));
+                }
+                for (String key : termCounts.keySet()) {
+                    keywords.put(key, DocValues.getSortedSet(reader, KEYWORD_PREFIX + key));
+                }
+            }
+
+            @Override
+            protected void accept(int doc, String failedKey) throws IOException {
+                for (Map.Entry<String, SortedNumericDocValues> entry : numbers.entrySet()) {
+                    SortedNumericDocValues values = entry.getValue();
+                    if ((failedKey == null || failedKey.equals(entry.getKey())) && values.advanceExact(doc)) {
+                        double interval = numericalInterval.get(entry.getKey());
+                        for (int i = 0; i < values.docValueCount(); i++) {
+                            double value = NumericUtils.sortableLongToDouble(values.nextValue());
+                            buckets.get(entry.getKey()).add(Math.floor(value / interval) * interval);
+                        }
+                    }
+                }
+                for (Map.Entry<String, SortedSetDocValues> entry : keywords.entrySet()) {
+                    SortedSetDocValues values = entry.getValue();
+                    if ((failedKey == null || failedKey.equals(entry.getKey())) && values.advanceExact(doc)) {
+                        Map<String, Integer> counts = termCounts.get(entry.getKey());
+                        for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                            counts.merge(values.lookupOrd(ord).utf8ToString(), 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+        });
+        Map<String, List<Double>> numerical = new LinkedHashMap<>();
+        buckets.forEach((key, starts) -> numerical.put(key, new ArrayList<>(starts)));
+        Map<String, List<String>> strings = new LinkedHashMap<>();
+        termCounts.forEach((key, counts) -> {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            List<String> options = new ArrayList<>();
+            for (int i = 0; i < entries.size() && i < TERMS_SIZE; i++) {
+                options.add(entries.get(i).getKey());
+            }
+            strings.put(key, options);
+        });
+        hits.setSpecNumerical(numerical);
+        hits.setSpecStrings(strings);
+    }
+
+    /**
+     * 分类下数值参数的统计值
+     * @return 参数名和{min, max, sum}，没有数据的参数不会返回
+     */
+    @Override
+    public Map<String, double[]> stats(Long cid, Set<String> keys) {
+        Map<String, double[]> stats = new HashMap<>();
+        collect(LongPoint.newExactQuery(CID3, cid), new FilteredCollector(Collections.emptyList()) {
+            private final Map<String, SortedNumericDocValues> numbers = new HashMap<>();
+
+            @Override
+            protected void setReader(LeafReader reader) throws IOException {
+                for (String key : keys) {
+                    numbers.put(key, DocValues.getSortedNumeric(reader, NUMBER_PREFIX + key));
+                }
+            }
+
+            @Override
+            protected void accept(int doc, String failedKey) throws IOException {
+                for (Map.Entry<String, SortedNumericDocValues> entry : numbers.entrySet()) {
+                    SortedNumericDocValues values = entry.getValue();
+                    if (!values.advanceExact(doc)) {
+                        continue;
+                    }
+                    double[] stat = stats.computeIfAbsent(entry.getKey(),
+                            k -> new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0});
+                    for (int i = 0; i < values.docValueCount(); i++) {
+                        double value = NumericUtils.sortableLongToDouble(values.nextValue());
+                        stat[0] = Math.min(stat[0], value);
+                        stat[1] = Math.max(stat[1], value);
+                        stat[2] += value;
+                    }
+                }
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * 遍历索引中的全部商品
+     */
+    @Override
+    public void forEach(Consumer<Goods> consumer) {
+        withSearcher(searcher -> {
+            for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+                LeafReader reader = context.reader();
+                Bits liveDocs = reader.getLiveDocs();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        consumer.accept(JsonUtils.toBean(reader.document(doc).get(SOURCE), Goods.class));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    public int count() {
+        return withSearcher(searcher -> searcher.getIndexReader().numDocs());
+    }
+
+    private GoodsHits query(SearchRequest request, SearcherCallback<TopDocs> search, int from) {
+        return withSearcher(searcher -> {
+            TopDocs topDocs = search.doWith(searcher);
+            List<Goods> items = new ArrayList<>();
+            for (int i = from; i < topDocs.scoreDocs.length; i++) {
+                items.add(toListItem(JsonUtils.toBean(searcher.doc(topDocs.scoreDocs[i].doc).get(SOURCE), Goods.class)));
+            }
+            Object[] lastSortValues = topDocs.scoreDocs.length == 0 ? null
+                    : ((FieldDoc) topDocs.scoreDocs[topDocs.scoreDocs.length - 1]).fields;
+            GoodsHits hits = new GoodsHits(topDocs.totalHits, items);
+            hits.setLastSortValues(lastSortValues);
+            return hits;
+        });
+    }
+
+    private void collect(Query query, Collector collector) {
+        withSearcher(searcher -> {
+            searcher.search(query, collector);
+            return null;
+        });
+    }
+
+    private <T> T withSearcher(SearcherCallback<T> callback) {
+        try {
+            return withSearcher(this.live, callback);
+        } catch (AlreadyClosedException e) {
+            //取到的是刚刚被全量构建替换掉的目录，换成新目录重试一次
+            return withSearcher(this.live, callback);
+        }
+    }
+
+    private <T> T withSearcher(Store store, SearcherCallback<T> callback) {
+        try {
+            IndexSearcher searcher = store.manager.acquire();
+            try {
+                return callback.doWith(searcher);
+            } finally {
+                store.manager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Store> targets() {
+        Store store = this.building;
+        return store == null ? Collections.singletonList(live) : Arrays.asList(live, store);
+    }
+
+//    和elasticsearch的source filter一样，列表页只需要id,skus,skuCount,subTitle
+    private Goods toListItem(Goods source) {
+        Goods goods = new Goods();
+        goods.setId(source.getId());
+        goods.setSubTitle(source.getSubTitle());
+        goods.setSkus(source.getSkus());
+        goods.setSkuCount(source.getSkuCount());
+        return goods;
+    }
+
+    private Document toDocument(Goods goods) {
+        Document doc = new Document();
+        doc.add(new StringField(ID, goods.getId().toString(), Field.Store.NO));
+        doc.add(new NumericDocValuesField(ID, goods.getId()));
+        doc.add(new StoredField(SOURCE, JsonUtils.toString(goods)));
+        if (goods.getAll() != null) {
+            doc.add(new TextField(ALL, goods.getAll(), Field.Store.NO));
+        }
+        addLong(doc, CID3, goods.getCid3());
+        addLong(doc, BRAND_ID, goods.getBrandId());
+        if (goods.getCreateTime() != null) {
+            doc.add(new NumericDocValuesField(CREATE_TIME, goods.getCreateTime().getTime()));
+        }
+        if (goods.getPrice() != null) {
+            for (Long price : goods.getPrice()) {
+                doc.add(new SortedNumericDocValuesField(PRICE, price));
+            }
+        }
+        if (goods.getSpecs() != null) {
+            goods.getSpecs().forEach((key, value) -> {
+                for (Object v : value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value)) {
+                    addSpec(doc, key, v);
+                }
+            });
+        }
+        return doc;
+    }
+
+    private void addLong(Document doc, String field, Long value) {
+        if (value != null) {
+            doc.add(new LongPoint(field, value));
+            doc.add(new NumericDocValuesField(field, value));
+        }
+    }
+
+//    数值参数用于区间过滤和分桶，字符串参数用于精确过滤和统计选项
+    private void addSpec(Document doc, String key, Object value) {
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            doc.add(new DoublePoint(NUMBER_PREFIX + key, number));
+            doc.add(new SortedNumericDocValuesField(NUMBER_PREFIX + key, NumericUtils.doubleToSortableLong(number)));
+        } else if (value != null && StringUtils.isNotBlank(value.toString())) {
+            doc.add(new StringField(KEYWORD_PREFIX + key, value.toString(), Field.Store.NO));
+            doc.add(new SortedSetDocValuesField(KEYWORD_PREFIX + key, new BytesRef(value.toString())));
+        }
+    }
+
+    private Term idTerm(Long id) {
+        return new Term(ID, id.toString());
+    }
+
+//    关键字全文检索，所有词都要匹配；分类和品牌是不评分的过滤条件。按分类浏览时没有关键字
+    private Query basicQuery(SearchRequest request) {
+        Query text = StringUtils.isBlank(request.getKey()) ? new MatchAllDocsQuery()
+                : new QueryBuilder(analyzer).createBooleanQuery(ALL, request.getKey(), BooleanClause.Occur.MUST);
+        if (text == null) {
+            //关键字中没有可以检索的词
+            return new MatchNoDocsQuery();
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder().add(text, BooleanClause.Occur.MUST);
+        Map<String, String> filter = request.getFilter();
+        if (filter != null) {
+            for (Map.Entry<String, String> entry : filter.entrySet()) {
+                String value = StringUtils.trimToNull(entry.getValue());
+                if (value == null) {
+                    continue;
+                }
+                String field = SearchService.isCategoryFilter(entry.getKey()) ? CID3
+                        : SearchService.isBrandFilter(entry.getKey()) ? BRAND_ID : null;
+                if (field != null) {
+                    builder.add(NumberUtils.isDigit(value) ? LongPoint.newExactQuery(field, Long.valueOf(value))
+                            : new MatchNoDocsQuery(), BooleanClause.Occur.FILTER);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private Query fullQuery(SearchRequest request) {
+        List<SpecFilter> filters = specFilters(request);
+        if (filters.isEmpty()) {
+            return basicQuery(request);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder().add(basicQuery(request), BooleanClause.Occur.MUST);
+        for (SpecFilter filter : filters) {
+            builder.add(filter.query(), BooleanClause.Occur.FILTER);
+        }
+        return builder.build();
+    }
+
+    private List<SpecFilter> specFilters(SearchRequest request) {
+        List<SpecFilter> filters = new ArrayList<>();
+        Map<String, String> filter = request.getFilter();
+        if (filter == null) {
+            return filters;
+        }
+        CategorySpec spec = null;
+        boolean specLoaded = false;
+        for (Map.Entry<String, String> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (StringUtils.isBlank(value) || SearchService.isCategoryFilter(key) || SearchService.isBrandFilter(key)) {
+                continue;
+            }
+            if (!specLoaded) {
+                spec = this.specTemplateService.getFilterSpec(request);
+                specLoaded = true;
+            }
+            double[] range = SearchService.parseRange(spec, key, value);
+            filters.add(range != null ? new SpecFilter(key, null, range[0], range[1]) : new SpecFilter(key, value, 0, 0));
+        }
+        return filters;
+    }
+
+//    与elasticsearch的排序一致：price多值时升序取最小值、降序取最大值，没有指定时按相关度；最后按id排序保证唯一
+    private Sort sort(SearchRequest request) {
+        String sortBy = StringUtils.trimToNull(request.getSortBy());
+        boolean desc = sortBy != null && Boolean.TRUE.equals(request.getDescending());
+        SortField first;
+        if (PRICE.equals(sortBy)) {
+            first = new SortedNumericSortField(PRICE, SortField.Type.LONG, desc,
+                    desc ? SortedNumericSelector.Type.MAX : SortedNumericSelector.Type.MIN);
+        } else if (CREATE_TIME.equals(sortBy) || CID3.equals(sortBy) || BRAND_ID.equals(sortBy) || ID.equals(sortBy)) {
+            first = new SortField(sortBy, SortField.Type.LONG, desc);
+        } else {
+            first = SortField.FIELD_SCORE;
+        }
+        if (first != SortField.FIELD_SCORE) {
+            //没有这个字段的商品排在最后
+            first.setMissingValue(desc ? Long.MIN_VALUE : Long.MAX_VALUE);
+        }
+        return new Sort(first, new SortField(ID, SortField.Type.LONG));
+    }
+
+//    游标经过json编码后数字类型会变化，按排序字段的类型还原
+    private Object[] toSortValues(Sort sort, Object[] after) {
+        SortField[] fields = sort.getSort();
+        if (after.length != fields.length) {
+            throw new IllegalArgumentException("排序值数量不一致");
+        }
+        Object[] values = new Object[after.length];
+        for (int i = 0; i < after.length; i++) {
+            Number number = (Number) after[i];
+            values[i] = fields[i].getType() == SortField.Type.SCORE ? (Object) number.floatValue() : (Object) number.longValue();
+        }
+        return values;
+    }
+
+    private List<Long> topTerms(LongIntHashMap counts, int size) {
+        List<Long> ids = new ArrayList<>(counts.size());
+        for (LongIntCursor cursor : counts) {
+            ids.add(cursor.key);
+        }
+        ids.sort((a, b) -> counts.get(a) != counts.get(b) ? Integer.compare(counts.get(b), counts.get(a)) : Long.compare(a, b));
+        return new ArrayList<>(ids.subList(0, Math.min(ids.size(), size)));
+    }
+
+    private String newStoreName() {
+        return "goods_" + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date());
+    }
+
+    private void writeCurrent(String name) throws IOException {
+        Path tmp = basePath.resolve(CURRENT_FILE + ".tmp");
+        Files.write(tmp, name.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, basePath.resolve(CURRENT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface SearcherCallback<T> {
+        T doWith(IndexSearcher searcher) throws IOException;
+    }
+
+    /**
+     * 一个索引目录及其writer和searcher
+     */
+    private class Store {
+        private final Path path;
+        private final Directory directory;
+        private final IndexWriter writer;
+        private final SearcherManager manager;
+
+        Store(Path path) throws IOException {
+            this.path = path;
+            this.directory = new MMapDirectory(path);
+            this.writer = new IndexWriter(directory, new IndexWriterConfig(analyzer)
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+            //新目录需要先提交一次，才能打开searcher
+            this.writer.commit();
+            this.manager = new SearcherManager(writer, null);
+        }
+
+        void close() throws IOException {
+            IOUtils.close(manager, writer, directory);
+        }
+    }
+
+    /**
+     * 一个规格参数的过滤条件：字符串精确匹配，或者数值左闭右开的区间
+     */
+    private static class SpecFilter {
+        private final String key;
+        private final String term;
+        private final double from;
+        private final double to;
+
+        SpecFilter(String key, String term, double from, double to) {
+            this.key = key;
+            this.term = term;
+            this.from = from;
+            this.to = to;
+        }
+
+        Query query() {
+            if (term != null) {
+                return new TermQuery(new Term(KEYWORD_PREFIX + key, term));
+            }
+            return DoublePoint.newRangeQuery(NUMBER_PREFIX + key, from, Math.nextDown(to));
+        }
+
+        /**
+         * 聚合时逐个文档判断是否满足条件
+         */
+        LeafMatcher matcher(LeafReader reader) throws IOException {
+            if (term != null) {
+                SortedSetDocValues values = DocValues.getSortedSet(reader, KEYWORD_PREFIX + key);
+                long target = values.lookupTerm(new BytesRef(term));
+                return doc -> {
+                    if (target < 0 || !values.advanceExact(doc)) {
+                        return false;
+                    }
+                    for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                        if (ord == target) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            SortedNumericDocValues values = DocValues.getSortedNumeric(reader, NUMBER_PREFIX + key);
+            return doc -> {
+                if (!values.advanceExact(doc)) {
+                    return false;
+                }
+                for (int i = 0; i < values.docValueCount(); i++) {
+                    double value = NumericUtils.sortableLongToDouble(values.nextValue());
+                    if (value >= from && value < to) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+    }
+
+    private interface LeafMatcher {
+        boolean matches(int doc) throws IOException;
+    }
+
+    /**
+     * 遍历基本查询命中的商品，逐个判断规格参数的过滤条件。
+     * 只有一个条件不满足时也交给accept，用于统计这个参数自己的其它选项
+     */
+    private abstract static class FilteredCollector extends SimpleCollector {
+        private final List<SpecFilter> filters;
+        private final List<LeafMatcher> matchers = new ArrayList<>();
+
+        FilteredCollector(List<SpecFilter> filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            matchers.clear();
+            for (SpecFilter filter : filters) {
+                matchers.add(filter.matcher(context.reader()));
+            }
+            setReader(context.reader());
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            String failedKey = null;
+            for (int i = 0; i < matchers.size(); i++) {
+                if (!matchers.get(i).matches(doc)) {
+                    if (failedKey != null) {
+                        return;
+                    }
+                    failedKey = filters.get(i).key;
+                }
+            }
+            accept(doc, failedKey);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+
+        protected abstract void setReader(LeafReader reader) throws IOException;
+
+        /**
+         * @param failedKey 不满足的过滤条件的参数名，全部满足时为null
+         */
+        protected abstract void accept(int doc, String failedKey) throws IOException;
+    }
+}
@@ -0,0 +1,240 @@
+package com.leyou.search.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.leyou.common.pojo.PageResult;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.common.enums.ExceptionEnum;
+import com.leyou.common.exception.LyException;
+import com.leyou.search.pojo.BatchSearchEntry;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.SearchKey;
+import com.leyou.search.pojo.SearchRequest;
+import com.leyou.search.pojo.SearchResult;
+import com.leyou.search.pojo.SkuSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 搜索结果缓存。热门关键字的搜索条件高度重复，相同条件直接返回缓存的结果；
+ * 写入一段时间后在后台异步刷新。全量构建和回滚后全部失效，增量更新后只失效可能受影响的结果
+ */
+@Service
+@EnableConfigurationProperties(SearchProperties.class)
+public class SearchCacheService {
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private DegradeService degradeService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private LoadingCache<SearchKey, PageResult<Goods>> cache;
+
+    /**
+     * 估算权重时的固定大小，单位是字节：一页结果(含分类、品牌、规格参数的聚合)、一个商品、一个sku摘要、一个数字
+     */
+    private static final int RESULT_BYTES = 2048;
+    private static final int GOODS_BYTES = 128;
+    private static final int SKU_BYTES = 64;
+    private static final int NUMBER_BYTES = 16;
+
+    /**
+     * 等待合并失效：没有限定分类和品牌的结果、全部结果
+     */
+    private final AtomicBoolean pendingUnfiltered = new AtomicBoolean();
+    private final AtomicBoolean pendingAll = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        //同时按条数和字节数限制：权重是估算的UTF-8字节数，每条至少按平均大小计算，条数就不会超过上限
+        long maxBytes = props.getResultCacheBytes();
+        int minWeight = (int) Math.max(1, maxBytes / props.getResultCacheSize());
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<SearchKey, PageResult<Goods>>weigher((key, result) -> Math.max(minWeight, estimateBytes(result)))
+                .refreshAfterWrite(props.getResultCacheRefresh().toMillis(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(props.getResultCacheExpire().toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(key -> this.searchService.search(key.toRequest()));
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "searchResult");
+        Gauge.builder("search.cache.bytes", this, SearchCacheService::weightedSize).baseUnit("bytes")
+                .description("缓存的搜索结果估算的UTF-8字节数").register(meterRegistry);
+    }
+
+    /**
+     * 搜索商品，相同条件的结果从缓存返回
+     * @param request 搜索条件
+     * @return 关键字为空并且没有按分类过滤时返回null
+     */
+    public PageResult<Goods> search(SearchRequest request) {
+        if (!props.getResultCacheEnabled()) {
+            return this.searchService.search(request);
+        }
+        SearchKey key = SearchKey.of(request);
+        if (key.getKey().isEmpty() && !SearchService.isBrowse(request)) {
+            return null;
+        }
+        PageResult<Goods> result = this.cache.get(key);
+        //降级时缓存的结果缺少部分聚合，负载恢复后重新搜索
+        if (result instanceof SearchResult && ((SearchResult) result).getDegradeLevel() != null
+                && ((SearchResult) result).getDegradeLevel().compareTo(this.degradeService.getLevel()) > 0) {
+            this.cache.invalidate(key);
+            result = this.cache.get(key);
+        }
+        return result;
+    }
+
+    /**
+     * 批量搜索，缓存中已经有完整结果的条件直接取其中的商品，其余的合并成一次搜索
+     * @return 和requests一一对应
+     */
+    public List<BatchSearchEntry> batchSearch(List<SearchRequest> requests) {
+        if (!props.getResultCacheEnabled()) {
+            return this.searchService.batchSearch(requests);
+        }
+        if (requests.size() > props.getBatchMaxSize()) {
+            throw new LyException(ExceptionEnum.BATCH_SEARCH_TOO_LARGE);
+        }
+        List<BatchSearchEntry> entries = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        List<SearchRequest> missing = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            SearchRequest request = requests.get(i);
+            PageResult<Goods> cached = request == null || request.getCursor() != null ? null : this.cache.getIfPresent(SearchKey.of(request));
+            if (cached instanceof SearchResult) {
+                SearchResult result = new SearchResult(cached.getTotal(), cached.getTotalPage(), cached.getItems(), null, null, null);
+                result.setDegradeLevel(((SearchResult) cached).getDegradeLevel());
+                entries.set(i, BatchSearchEntry.success(result));
+            } else {
+                missing.add(request);
+                slots.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<BatchSearchEntry> results = this.searchService.batchSearch(missing);
+            for (int j = 0; j < slots.size(); j++) {
+                entries.set(slots.get(j), results.get(j));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 全量构建或回滚后调用
+     */
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * 增量更新后调用。限定了分类或品牌的结果，只在对应的商品变化时立即失效；
+     * 没有限定的关键字搜索任何商品变化都可能受影响，合并到下一次{@link #flushPending()}失效，其间依靠refreshAfterWrite刷新。
+     * 修改的商品按新的和原来的分类、品牌都要失效。删除的商品不知道原来的分类和品牌，所有结果都合并到下一次失效
+     * @param upserts 新增或修改的商品
+     * @param deletes 删除的spuId
+     * @param previous 修改前索引中的商品，只需要分类和品牌；为null表示没有查到，所有结果都合并到下一次失效
+     */
+    public void invalidate(List<Goods> upserts, List<Long> deletes, Map<Long, Goods> previous) {
+        if (!deletes.isEmpty() || (previous == null && !upserts.isEmpty())) {
+            pendingAll.set(true);
+        }
+        if (upserts.isEmpty()) {
+            return;
+        }
+        Set<Long> cids = new HashSet<>();
+        Set<Long> brandIds = new HashSet<>();
+        List<Goods> touched = new ArrayList<>(upserts);
+        if (previous != null) {
+            touched.addAll(previous.values());
+        }
+        for (Goods goods : touched) {
+            cids.add(goods.getCid3());
+            brandIds.add(goods.getBrandId());
+        }
+        this.cache.asMap().keySet().removeIf(key -> {
+            Long cid = SearchService.getCategoryFilter(key.getFilter());
+            Long brandId = SearchService.getBrandFilter(key.getFilter());
+            if (cid == null && brandId == null) {
+                return false;
+            }
+            return (cid == null || cids.contains(cid)) && (brandId == null || brandIds.contains(brandId));
+        });
+        pendingUnfiltered.set(true);
+    }
+
+    @Scheduled(fixedDelayString = "${ly.search.result-cache-invalidate:5000}")
+    public void flushPending() {
+        if (pendingAll.getAndSet(false)) {
+            pendingUnfiltered.set(false);
+            this.cache.invalidateAll();
+        } else if (pendingUnfiltered.getAndSet(false)) {
+            this.cache.asMap().keySet().removeIf(key -> SearchService.getCategoryFilter(key.getFilter()) == null
+                    && SearchService.getBrandFilter(key.getFilter()) == null);
+        }
+    }
+
+    /**
+     * 估算结果序列化成json后的UTF-8字节数，单位是字节。缓存的是对象，为了计算权重再序列化一次太浪费，
+     * 只按UTF-8计算商品中字符串的长度，数字、json结构和聚合结果按固定大小估算
+     */
+    static int estimateBytes(PageResult<Goods> result) {
+        long bytes = RESULT_BYTES;
+        if (result.getItems() != null) {
+            for (Goods goods : result.getItems()) {
+                bytes += GOODS_BYTES + utf8Length(goods.getTitle()) + utf8Length(goods.getSubTitle()) + utf8Length(goods.getAll());
+                if (goods.getPrice() != null) {
+                    bytes += NUMBER_BYTES * goods.getPrice().size();
+                }
+                if (goods.getSkus() != null) {
+                    for (SkuSummary sku : goods.getSkus()) {
+                        bytes += SKU_BYTES + utf8Length(sku.getTitle()) + utf8Length(sku.getImage());
+                    }
+                }
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    /**
+     * 字符串的UTF-8字节数，中文一般是3个字节，不需要先编码成字节数组
+     */
+    static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                //代理对的两个char一共4个字节
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private double weightedSize() {
+        return this.cache.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+    }
+}
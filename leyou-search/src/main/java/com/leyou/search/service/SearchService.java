@@ -1,288 +1,614 @@
 package com.leyou.search.service;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.leyou.common.enums.ExceptionEnum;
+import com.leyou.common.exception.LyException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.leyou.common.pojo.PageResult;
 import com.leyou.common.utils.JsonUtils;
 import com.leyou.common.utils.NumberUtils;
 import com.leyou.item.pojo.Brand;
 import com.leyou.item.pojo.Category;
-import com.leyou.search.client.BrandClient;
-import com.leyou.search.client.CategoryClient;
-import com.leyou.search.client.SpecificationClient;
+import com.leyou.item.pojo.Sku;
+import com.leyou.search.client.GoodsClient;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.BatchSearchEntry;
+import com.leyou.search.pojo.CategoryFacets;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.DegradeLevel;
+import com.leyou.search.pojo.FacetOptions;
 import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.GoodsHits;
+import com.leyou.search.pojo.SearchKey;
 import com.leyou.search.pojo.SearchRequest;
 import com.leyou.search.pojo.SearchResult;
-import com.leyou.search.repository.GoodsRepository;
+import com.leyou.search.utils.SearchTrace;
+import com.leyou.search.utils.SingleFlight;
+import feign.FeignException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.apache.commons.lang.StringUtils;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.index.query.MatchQueryBuilder;
-import org.elasticsearch.index.query.Operator;
-import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.aggregations.Aggregation;
-import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.histogram.InternalHistogram;
-import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
-import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
-import org.elasticsearch.search.aggregations.metrics.stats.InternalStats;
-import org.elasticsearch.search.sort.SortBuilder;
-import org.elasticsearch.search.sort.SortBuilders;
-import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.elasticsearch.core.ElasticsearchTemplate;
-import org.springframework.data.elasticsearch.core.aggregation.AggregatedPage;
-import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
-import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 
 @Service
+@EnableConfigurationProperties(SearchProperties.class)
 public class SearchService {
 
     @Autowired
-    private GoodsRepository goodsRepository;
+    private DictionaryService dictionaryService;
 
     @Autowired
-    private CategoryClient categoryClient;
+    private SpecTemplateService specTemplateService;
 
     @Autowired
-    private BrandClient brandClient;
+    private SpecIntervalService specIntervalService;
 
     @Autowired
-    private ElasticsearchTemplate elasticsearchTemplate;
+    private GoodsClient goodsClient;
 
     @Autowired
-    private SpecificationClient specClient;
+    private SearchProperties props;
+
+    @Autowired
+    private SearchStatsService searchStatsService;
+
+    @Autowired
+    private DegradeService degradeService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private GoodsSearchEngine searchEngine;
 
     private static final Logger logger = LoggerFactory.getLogger(SearchService.class);
 
+    /**
+     * 解析聚合结果的线程池，有界队列，满了以后直接放弃该项聚合
+     */
+    private ThreadPoolExecutor facetExecutor;
+
+    private SingleFlight<SearchKey, PageResult<Goods>> singleFlight;
+
+    /**
+     * 按分类浏览时使用的品牌和规格参数选项，key是三级分类id
+     */
+    private LoadingCache<Long, CategoryFacets> categoryFacets;
+
+    /**
+     * 过滤条件中表示分类和品牌的key，其余的都是规格参数
+     */
+    private static final String CATEGORY_FILTER = "分类";
+    private static final String BRAND_FILTER = "品牌";
+
+    /**
+     * 数值类型规格参数的区间选项，例如4.5-5.0
+     */
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)?)-(\\d+(?:\\.\\d+)?)$");
+
+    /**
+     * 搜索时分类和品牌最多返回的个数，与elasticsearch terms聚合的默认值相同
+     */
+    private static final int FACET_SIZE = 10;
+
+    @PostConstruct
+    public void init() {
+        int threads = props.getFacetThreads();
+        AtomicInteger count = new AtomicInteger();
+        this.facetExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(props.getFacetQueueSize()), r -> {
+            Thread thread = new Thread(r, "search-facet-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.singleFlight = new SingleFlight<>(meterRegistry, "search");
+        this.categoryFacets = Caffeine.newBuilder()
+                .maximumSize(props.getBrowseFacetSize())
+                .refreshAfterWrite(props.getBrowseFacetRefresh().toMillis(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(props.getBrowseFacetExpire().toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(this::computeCategoryFacets);
+        CaffeineCacheMetrics.monitor(meterRegistry, categoryFacets, "categoryFacets");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        this.facetExecutor.shutdownNow();
+    }
+
+    /**
+     * 搜索商品，规范化后相同的并发搜索只执行一次
+     * @param searchRequest 搜索条件
+     * @return 关键字为空并且没有按分类过滤时返回null
+     * @throws LyException 等待相同的搜索超时或被中断时为SEARCH_BUSY
+     */
     public PageResult<Goods> search(SearchRequest searchRequest) {
+        try {
+            return this.singleFlight.execute(SearchKey.of(searchRequest), () -> doSearch(searchRequest),
+                    props.getSearchWaitTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | CancellationException e) {
+            throw new LyException(ExceptionEnum.SEARCH_BUSY);
+        }
+    }
+
+    /**
+     * 批量搜索：只返回商品和分页信息，不做聚合，所有条件合并成一次multi search执行。
+     * 单个条件无效或执行失败只影响它自己的结果
+     * @param requests 搜索条件，不支持游标分页
+     * @return 和requests一一对应
+     */
+    public List<BatchSearchEntry> batchSearch(List<SearchRequest> requests) {
+        if (requests.size() > props.getBatchMaxSize()) {
+            throw new LyException(ExceptionEnum.BATCH_SEARCH_TOO_LARGE);
+        }
+        DegradeLevel level = this.degradeService.enter();
+        try {
+            int size = pageSize(level);
+            BatchSearchEntry[] entries = new BatchSearchEntry[requests.size()];
+            List<SearchRequest> batchRequests = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            for (int i = 0; i < requests.size(); i++) {
+                SearchRequest request = requests.get(i);
+                if (request == null || (StringUtils.isBlank(request.getKey()) && !isBrowse(request))) {
+                    entries[i] = BatchSearchEntry.failure(HttpStatus.NOT_FOUND.value(), "缺少搜索关键字");
+                    continue;
+                }
+                if (request.getCursor() != null) {
+                    entries[i] = BatchSearchEntry.failure(HttpStatus.BAD_REQUEST.value(), "批量搜索不支持游标分页");
+                    continue;
+                }
+                //和分类浏览一样，没有关键字时默认按上架时间从新到旧排序
+                SearchRequest batchRequest = SearchKey.of(request).toRequest();
+                if (StringUtils.isBlank(batchRequest.getKey()) && StringUtils.isBlank(batchRequest.getSortBy())) {
+                    batchRequest.setSortBy("createTime");
+                    batchRequest.setDescending(true);
+                }
+                batchRequests.add(batchRequest);
+                slots.add(i);
+            }
+            if (!slots.isEmpty()) {
+                long queryBegin = System.nanoTime();
+                List<GoodsHits> results = this.searchEngine.multiSearch(batchRequests, size);
+                searchStatsService.record(new SearchTrace(), SearchStatsService.PHASE_QUERY, System.nanoTime() - queryBegin);
+                for (int j = 0; j < results.size(); j++) {
+                    GoodsHits hits = results.get(j);
+                    if (hits.getFailure() instanceof IllegalArgumentException) {
+                        entries[slots.get(j)] = BatchSearchEntry.failure(HttpStatus.BAD_REQUEST.value(), "无效的搜索条件：" + hits.getFailure().getMessage());
+                    } else if (hits.getFailure() != null) {
+                        entries[slots.get(j)] = BatchSearchEntry.failure(HttpStatus.INTERNAL_SERVER_ERROR.value(), hits.getFailure().getMessage());
+                    } else {
+                        entries[slots.get(j)] = BatchSearchEntry.success(toResult(hits, size));
+                    }
+                }
+            }
+            for (BatchSearchEntry entry : entries) {
+                if (entry.getResult() != null) {
+                    entry.getResult().setDegradeLevel(level);
+                }
+            }
+            return Arrays.asList(entries);
+        } finally {
+            this.degradeService.exit();
+        }
+    }
+
+    /**
+     * 列表页只带了sku摘要，展开商品时再查询完整的sku列表
+     * @param spuId
+     * @return spu不存在时返回null
+     */
+    public List<Sku> querySkuBySpuId(Long spuId) {
+        try {
+            return this.goodsClient.querySkuBySpuId(spuId);
+        } catch (FeignException e) {
+            if (e.status() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 按当前的降级级别执行搜索，结果中带上使用的级别
+     */
+    private PageResult<Goods> doSearch(SearchRequest searchRequest) {
+        DegradeLevel level = this.degradeService.enter();
+        try {
+            SearchResult result = doSearch(searchRequest, level);
+            if (result != null) {
+                result.setDegradeLevel(level);
+            }
+            return result;
+        } finally {
+            this.degradeService.exit();
+        }
+    }
+
+    private SearchResult doSearch(SearchRequest searchRequest, DegradeLevel level) {
+        SearchTrace trace = new SearchTrace();
         String key = searchRequest.getKey();
 
         /**
-         * 判断是否有搜索条件，如果没有，直接返回null。不允许搜索全部商品
+         * 判断是否有搜索条件，如果没有，直接返回null。不允许搜索全部商品，只能按分类浏览
          */
         if (StringUtils.isBlank(key)){
-            return null;
+            if (!isBrowse(searchRequest)) {
+                return null;
+            }
+            SearchResult result = browse(searchRequest, trace, level);
+            searchStatsService.finish(trace, SearchKey.of(searchRequest));
+            return result;
         }
-        //1.构建查询条件
-        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
-        MatchQueryBuilder basicQuery = QueryBuilders.matchQuery("all", key).operator(Operator.AND);
-        //1.1.对关键字进行全文检索查询
-        queryBuilder.withQuery(QueryBuilders.matchQuery("all",key).operator(Operator.AND));
-        //1.2.通过sourceFilter设置返回的结果字段，只需要id,skus,subTitle
-        queryBuilder.withSourceFilter(new FetchSourceFilter(new String[]{"id","skus","subTitle"},null));
-        //1.3.分页和排序
-        searchWithPageAndSort(queryBuilder,searchRequest);
-        //1.4.聚合
-        /**
-         * 商品分类聚合名称
-         */
-        String categoryAggName = "category";
-        /**
-         * 品牌聚合名称
-         */
-        String brandAggName = "brand";
-        //1.4.1。对商品分类进行聚合
-        queryBuilder.addAggregation(AggregationBuilders.terms(categoryAggName).field("cid3"));
-        //1.4.2.对品牌进行聚合
-        queryBuilder.addAggregation(AggregationBuilders.terms(brandAggName).field("brandId"));
+        //游标模式只返回商品，不做聚合
+        if (searchRequest.getCursor() != null) {
+            SearchResult result = searchWithCursor(searchRequest, trace, level);
+            searchStatsService.finish(trace, SearchKey.of(searchRequest));
+            return result;
+        }
+        //1.要统计的聚合
+        FacetOptions facets = new FacetOptions();
+        //1.1.商品分类
+        facets.setCategorySize(FACET_SIZE);
+        //1.2.品牌，负载过高时不统计
+        if (!level.atLeast(DegradeLevel.NO_BRAND)) {
+            facets.setBrandSize(FACET_SIZE);
+        }
+        //1.3.已经按分类过滤时，规格参数的聚合直接放在本次查询中，一次请求完成
+        Long cid = getCategoryFilter(searchRequest);
+        long intervalTime = 0;
+        if (cid != null && !level.atLeast(DegradeLevel.NO_SPEC)) {
+            long begin = System.nanoTime();
+            CategorySpec specParams = this.specTemplateService.getCategorySpec(cid);
+            facets.setSpecParams(specParams);
+            facets.setNumericalInterval(this.specIntervalService.getIntervals(cid, specParams.getNumericalUnits().keySet()));
+            intervalTime = System.nanoTime() - begin;
+            searchStatsService.record(trace, SearchStatsService.PHASE_INTERVAL, intervalTime);
+        }
+        searchStatsService.record(trace, SearchStatsService.PHASE_BUILD, trace.elapsed() - intervalTime);
         //2.查询、获取结果
-        AggregatedPage<Goods> pageInfo = (AggregatedPage<Goods>) this.goodsRepository.search(queryBuilder.build());
+        int size = pageSize(level);
+        long queryBegin = System.nanoTime();
+        GoodsHits hits = this.searchEngine.search(searchRequest, searchRequest.getPage(), size, facets);
+        searchStatsService.record(trace, SearchStatsService.PHASE_QUERY, System.nanoTime() - queryBegin);
         //3.解析查询结果
-        //3.1 分页信息
-        Long total = pageInfo.getTotalElements();
-        int totalPage = pageInfo.getTotalPages();
-        //3.2 商品分类的聚合结果
-        List<Category> categories = getCategoryAggResult(pageInfo.getAggregation(categoryAggName));
-        //3.3 品牌的聚合结果
-        List<Brand> brands = getBrandAggResult(pageInfo.getAggregation(brandAggName));
-
+        //3.1 需要再查询一次的规格参数聚合放到独立的线程池中，期限从查询返回后开始计算，超过期限的直接丢弃
+        long deadline = System.nanoTime() + props.getFacetTimeout().toNanos();
+        Future<List<Map<String, Object>>> specsFuture = null;
         List<Map<String,Object>> specs=null;
-        if (categories.size()==1){
-            specs=getSpec(categories.get(0).getId(),basicQuery);
+        if (facets.getSpecParams() != null) {
+            //规格参数已经在本次查询中聚合，直接解析
+            long begin = System.nanoTime();
+            specs = buildSpecs(facets.getSpecParams(), facets.getNumericalInterval(), hits.getSpecNumerical(), hits.getSpecStrings());
+            searchStatsService.record(trace, SearchStatsService.PHASE_SPEC, System.nanoTime() - begin);
+        } else if (hits.getCategoryIds().size()==1 && !level.atLeast(DegradeLevel.NO_SPEC)){
+            //搜索结果只有一个分类时，还需要再查询一次规格参数的聚合
+            Long onlyCid = hits.getCategoryIds().get(0);
+            specsFuture = submitFacet(trace, SearchStatsService.PHASE_SPEC, () -> getSpec(onlyCid, searchRequest));
+        }
+        //3.2 分类和品牌只是查询本地字典，在当前线程中解析
+        List<Category> categories = runFacet(trace, SearchStatsService.PHASE_CATEGORY,
+                () -> this.dictionaryService.getCategories(hits.getCategoryIds()));
+        List<Brand> brands = hits.getBrandIds() == null ? null : runFacet(trace, SearchStatsService.PHASE_BRAND,
+                () -> this.dictionaryService.getBrands(hits.getBrandIds()));
+        if (specsFuture != null) {
+            specs = awaitFacet("spec", specsFuture, deadline);
         }
-        //3.封装结果，返回
-        return new SearchResult(total, (long)totalPage,pageInfo.getContent(),categories,brands,specs);
+        //4.封装结果，返回
+        long assembleBegin = System.nanoTime();
+        SearchResult result = new SearchResult(hits.getTotal(), (hits.getTotal() + size - 1) / size, hits.getItems(), categories, brands, specs);
+        searchStatsService.record(trace, SearchStatsService.PHASE_ASSEMBLE, System.nanoTime() - assembleBegin);
+        searchStatsService.finish(trace, SearchKey.of(searchRequest));
+        return result;
 
     }
 
-    private List<Map<String, Object>> getSpec(Long id, QueryBuilder basicQuery) {
-        //不管是全局参数还是sku参数，只要是搜索参数，都根据分类id查询出来
-        String specsJSONStr = this.specClient.querySpecificationByCategoryId(id);
-        System.out.println("json"+specsJSONStr);
-        //1.将规格反序列化为集合
-        List<Map<String,Object>> specs = null;
-        specs = JsonUtils.nativeRead(specsJSONStr, new TypeReference<List<Map<String, Object>>>() {
-        });
-        //2.过滤出可以搜索的规格参数名称，分成数值类型、字符串类型
-        Set<String> strSpec = new HashSet<>();
-        //准备map，用来保存数值规格参数名及单位
-        Map<String,String> numericalUnits = new HashMap<>();
-        //解析规格
-        String searchable = "searchable";
-        String numerical = "numerical";
-        String k = "k";
-        String unit = "unit";
-        for (Map<String,Object> spec :specs){
-            List<Map<String, Object>> params = (List<Map<String, Object>>) spec.get("params");
-            params.forEach(param ->{
-                if ((boolean)param.get(searchable)){
-                    if (param.containsKey(numerical) && (boolean)param.get(numerical)){
-                        numericalUnits.put(param.get(k).toString(),param.get(unit).toString());
-                    }else {
-                        strSpec.add(param.get(k).toString());
-                    }
+//    在当前线程中解析，记录耗时，失败时返回null
+    private <T> T runFacet(SearchTrace trace, String step, Supplier<T> task) {
+        long begin = System.nanoTime();
+        try {
+            T result = task.get();
+            long elapsed = System.nanoTime() - begin;
+            facetTimer(step, "success").record(elapsed, TimeUnit.NANOSECONDS);
+            searchStatsService.record(trace, step, elapsed);
+            return result;
+        } catch (RuntimeException e) {
+            //和线程池中失败的聚合一样，响应中不包含这一项
+            facetTimer(step, "error").record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            logger.error("{}聚合结果解析出现异常", step, e);
+            return null;
+        }
+    }
+
+//    在聚合结果解析线程池中执行，记录耗时
+    private <T> Future<T> submitFacet(SearchTrace trace, String step, Callable<T> task) {
+        try {
+            return this.facetExecutor.submit(() -> {
+                long begin = System.nanoTime();
+                try {
+                    T result = task.call();
+                    long elapsed = System.nanoTime() - begin;
+                    facetTimer(step, "success").record(elapsed, TimeUnit.NANOSECONDS);
+                    searchStatsService.record(trace, step, elapsed);
+                    return result;
+                } catch (Exception e) {
+                    facetTimer(step, "error").record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    throw e;
                 }
             });
+        } catch (RejectedExecutionException e) {
+            //线程池已满，放弃这一项
+            facetTimer(step, "rejected").record(0, TimeUnit.NANOSECONDS);
+            return null;
         }
-        //3.聚合计算数值类型的interval
-        Map<String,Double> numericalInterval = getNumberInterval(id,numericalUnits.keySet());
-        return this.aggForSpec(strSpec,numericalInterval,numericalUnits,basicQuery);
     }
-    private Map<String, Double> getNumberInterval(Long id, Set<String> keySet) {
-        Map<String,Double> numbericalSpecs = new HashMap<>();
-        //准备查询条件
-        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
-        //不查询任何数据
-        queryBuilder.withQuery(QueryBuilders.termQuery("cid3",id.toString())).withSourceFilter(new FetchSourceFilter(new String[]{""},null)).withPageable(PageRequest.of(0,1));
-        //添加stats类型的聚合,同时返回avg、max、min、sum、count等
-        for (String key : keySet){
-            queryBuilder.addAggregation(AggregationBuilders.stats(key).field("specs." + key));
+
+//    在期限内等待结果，超时或失败时返回null，响应中不包含这一项
+    private <T> T awaitFacet(String step, Future<T> future, long deadline) {
+        if (future == null) {
+            return null;
         }
-        Map<String,Aggregation> aggregationMap = this.elasticsearchTemplate.query(queryBuilder.build(),
-                searchResponse -> searchResponse.getAggregations().asMap()
-        );
-        for (String key : keySet){
-            InternalStats stats = (InternalStats) aggregationMap.get(key);
-            double interval = this.getInterval(stats.getMin(),stats.getMax(),stats.getSum());
-            numbericalSpecs.put(key,interval);
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            facetTimer(step, "timeout").record(props.getFacetTimeout());
+            logger.warn("{}聚合结果解析超时，已丢弃", step);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("{}聚合结果解析出现异常", step, e.getCause());
         }
-        return numbericalSpecs;
+        return null;
     }
-    private double getInterval(double min, double max, Double sum) {
-        //要显示6个区间
-        double interval = (max - min) /6.0d;
-        //判断是否是小数
-        if (sum.intValue() == sum){
-            //不是小数，要取整十、整百
-            int length = StringUtils.substringBefore(String.valueOf(interval),".").length();
-            double factor = Math.pow(10.0,length - 1);
-            return Math.round(interval / factor)*factor;
-        }else {
-            //是小数的话就保留一位小数
-            return NumberUtils.scale(interval,1);
-        }
+
+    private Timer facetTimer(String step, String outcome) {
+        return Timer.builder("search.facet").tag("step", step).tag("outcome", outcome)
+                .description("搜索结果中各项聚合的解析耗时").register(meterRegistry);
     }
-    private List<Map<String, Object>> aggForSpec(Set<String> strSpec, Map<String, Double> numericalInterval, Map<String, String> numericalUnits, QueryBuilder basicQuery) {
-        List<Map<String,Object>> specs = new ArrayList<>();
-        //准备查询条件
-        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
-        queryBuilder.withQuery(basicQuery);
-        //聚合数值类型
-        for (Map.Entry<String,Double> entry : numericalInterval.entrySet()) {
-            queryBuilder.addAggregation(AggregationBuilders.histogram(entry.getKey()).field("specs." + entry.getKey()).interval(entry.getValue()).minDocCount(1));
-        }
-        //聚合字符串
-        for (String key :strSpec){
-            queryBuilder.addAggregation(AggregationBuilders.terms(key).field("specs."+key+".keyword"));
-        }
 
-        //解析聚合结果
-        Map<String,Aggregation> aggregationMap = this.elasticsearchTemplate.query(queryBuilder.build(), SearchResponse:: getAggregations).asMap();
+    private List<Map<String, Object>> getSpec(Long id, SearchRequest request) {
+        //1.分类的可搜索规格参数，从本地缓存中获取
+        CategorySpec specParams = this.specTemplateService.getCategorySpec(id);
+        //2.数值类型的interval，已经预先计算好
+        Map<String,Double> numericalInterval = this.specIntervalService.getIntervals(id, specParams.getNumericalUnits().keySet());
+        //3.只查询聚合结果
+        //结果都在这个分类中，加上分类过滤后可以只查询分类所在的分片
+        SearchRequest specRequest = SearchKey.of(request).toRequest();
+        specRequest.getFilter().put("cid3", id.toString());
+        FacetOptions facets = new FacetOptions();
+        facets.setSpecParams(specParams);
+        facets.setNumericalInterval(numericalInterval);
+        GoodsHits hits = this.searchEngine.search(specRequest, 1, 0, facets);
+        return buildSpecs(specParams, numericalInterval, hits.getSpecNumerical(), hits.getSpecStrings());
+    }
 
+//    生成规格参数的选项，buckets是数值参数每个区间的起始值，options是字符串参数的可选值
+    private List<Map<String, Object>> buildSpecs(CategorySpec specParams, Map<String, Double> numericalInterval,
+                                                 Map<String, List<Double>> buckets, Map<String, List<String>> options) {
+        List<Map<String,Object>> specs = new ArrayList<>();
         //解析数值类型
         for (Map.Entry<String,Double> entry :numericalInterval.entrySet()){
             Map<String,Object> spec = new HashMap<>();
             String key = entry.getKey();
             spec.put("k",key);
-            spec.put("unit",numericalUnits.get(key));
-            //获取聚合结果
-            InternalHistogram histogram = (InternalHistogram) aggregationMap.get(key);
-            spec.put("options",histogram.getBuckets().stream().map(bucket -> {
-                Double begin = (Double) bucket.getKey();
-                Double end = begin + numericalInterval.get(key);
+            spec.put("unit",specParams.getNumericalUnits().get(key));
+            spec.put("options",buckets.get(key).stream().map(begin -> {
+                Double end = begin + entry.getValue();
                 //对begin和end取整
                 if (NumberUtils.isInt(begin) && NumberUtils.isInt(end)){
                     //确实是整数，直接取整
                     return begin.intValue() + "-" + end.intValue();
                 }else {
                     //小数，取2位小数
-                    begin = NumberUtils.scale(begin,2);
-                    end = NumberUtils.scale(end,2);
-                    return begin + "-" + end;
+                    return NumberUtils.scale(begin,2) + "-" + NumberUtils.scale(end,2);
                 }
-            }));
+            }).collect(Collectors.toList()));
             specs.add(spec);
         }
 
         //解析字符串类型
-        strSpec.forEach(key -> {
+        specParams.getStrSpec().forEach(key -> {
             Map<String,Object> spec = new HashMap<>();
             spec.put("k",key);
-            StringTerms terms = (StringTerms) aggregationMap.get(key);
-            spec.put("options",terms.getBuckets().stream().map((Function<StringTerms.Bucket, Object>) StringTerms.Bucket::getKeyAsString));
+            spec.put("options",options.get(key));
             specs.add(spec);
         });
         return specs;
     }
 
+    /**
+     * 没有关键字、只按分类过滤的请求是分类浏览
+     */
+    static boolean isBrowse(SearchRequest request) {
+        return StringUtils.isBlank(request.getKey()) && getCategoryFilter(request) != null;
+    }
 
-//    解析品牌聚合结果
-    private List<Brand> getBrandAggResult(Aggregation aggregation) {
-        LongTerms brandAgg = (LongTerms) aggregation;
-        List<Long> bids = new ArrayList<>();
-        for (LongTerms.Bucket bucket : brandAgg.getBuckets()){
-            bids.add(bucket.getKeyAsNumber().longValue());
+    /**
+     * 分类的规格模板或者索引数据变化后调用
+     * @param cid 三级分类id，为null时全部失效
+     */
+    public void invalidateCategoryFacets(Long cid) {
+        if (cid == null) {
+            this.categoryFacets.invalidateAll();
+        } else {
+            this.categoryFacets.invalidate(cid);
         }
-        //根据品牌id查询品牌
-        return this.brandClient.queryBrandByIds(bids);
     }
-//    解析商品分类聚合结果
-    private List<Category> getCategoryAggResult(Aggregation aggregation){
-        try{
-            List<Category> categories = new ArrayList<>();
-            LongTerms categoryAgg = (LongTerms) aggregation;
-            List<Long> cids = new ArrayList<>();
-            for (LongTerms.Bucket bucket:categoryAgg.getBuckets()
-                 ) {
-                cids.add(bucket.getKeyAsNumber().longValue());
-            }
-//            根据id查询分类名称
-            List<String> names = this.categoryClient.queryNameByIds(cids);
-            for (int i=0;i<names.size();i++){
-                Category c = new Category();
-                c.setId(cids.get(i));
-                c.setName(names.get(i));
-                categories.add(c);
-            }
-            return categories;
-        }catch (Exception e){
-            logger.error("分类聚合出现异常",e);
+
+    /**
+     * 按分类浏览：没有关键字，只用过滤条件查询，默认按上架时间从新到旧排序。
+     * 品牌和规格参数选项是整个分类的，从缓存中取，不随本次的品牌、规格参数过滤条件变化
+     */
+    private SearchResult browse(SearchRequest request, SearchTrace trace, DegradeLevel level) {
+        Long cid = getCategoryFilter(request);
+        SearchRequest browseRequest = SearchKey.of(request).toRequest();
+        if (StringUtils.isBlank(browseRequest.getSortBy())) {
+            browseRequest.setSortBy("createTime");
+            browseRequest.setDescending(true);
+        }
+        if (browseRequest.getCursor() != null) {
+            return searchWithCursor(browseRequest, trace, level);
+        }
+        int size = pageSize(level);
+        searchStatsService.record(trace, SearchStatsService.PHASE_BUILD, trace.elapsed());
+        long queryBegin = System.nanoTime();
+        GoodsHits hits = this.searchEngine.search(browseRequest, browseRequest.getPage(), size, FacetOptions.none());
+        searchStatsService.record(trace, SearchStatsService.PHASE_QUERY, System.nanoTime() - queryBegin);
+        long total = hits.getTotal();
+        List<Goods> items = hits.getItems();
+        long begin = System.nanoTime();
+        List<Category> categories = this.dictionaryService.getCategories(Collections.singletonList(cid));
+        searchStatsService.record(trace, SearchStatsService.PHASE_CATEGORY, System.nanoTime() - begin);
+        begin = System.nanoTime();
+        //降级时只用已经缓存的选项，不再统计
+        CategoryFacets facets = level.atLeast(DegradeLevel.NO_SPEC) ? this.categoryFacets.getIfPresent(cid) : this.categoryFacets.get(cid);
+        searchStatsService.record(trace, SearchStatsService.PHASE_SPEC, System.nanoTime() - begin);
+        if (facets == null) {
+            return new SearchResult(total, (total + size - 1) / size, items, categories, null, null);
+        }
+        return new SearchResult(total, (total + size - 1) / size, items, categories, facets.getBrands(), facets.getSpecs());
+    }
+
+//    统计整个分类的品牌和规格参数选项，品牌比搜索时多取一些。结果要缓存较长时间，区间还没有算出来时立即计算，不能缺少数值参数
+    private CategoryFacets computeCategoryFacets(Long cid) {
+        CategorySpec specParams = this.specTemplateService.getCategorySpec(cid);
+        Map<String, Double> numericalInterval = this.specIntervalService.loadIntervals(cid, specParams.getNumericalUnits().keySet());
+        SearchRequest request = new SearchRequest();
+        request.setFilter(Collections.singletonMap("cid3", cid.toString()));
+        FacetOptions facets = new FacetOptions();
+        facets.setBrandSize(props.getBrowseBrandSize());
+        facets.setSpecParams(specParams);
+        facets.setNumericalInterval(numericalInterval);
+        GoodsHits hits = this.searchEngine.search(request, 1, 0, facets);
+        return new CategoryFacets(cid, this.dictionaryService.getBrands(hits.getBrandIds()),
+                buildSpecs(specParams, numericalInterval, hits.getSpecNumerical(), hits.getSpecStrings()));
+    }
+
+//    过滤条件中指定的分类
+    static Long getCategoryFilter(SearchRequest request) {
+        return getCategoryFilter(request.getFilter());
+    }
+
+    static Long getCategoryFilter(Map<String, String> filter) {
+        if (filter == null) {
             return null;
         }
+        String cid = StringUtils.defaultIfBlank(filter.get(CATEGORY_FILTER), filter.get("cid3"));
+        return NumberUtils.isDigit(cid) ? Long.valueOf(cid) : null;
+    }
+
+//    过滤条件中指定的品牌
+    static Long getBrandFilter(Map<String, String> filter) {
+        if (filter == null) {
+            return null;
+        }
+        String brandId = StringUtils.defaultIfBlank(filter.get(BRAND_FILTER), filter.get("brandId"));
+        return NumberUtils.isDigit(brandId) ? Long.valueOf(brandId) : null;
+    }
+
+    /**
+     * 数值类型规格参数的区间过滤条件，字符串类型的参数即使值像区间也按原值精确匹配
+     * @param spec 所选分类的规格参数，为null时规格模板不可用，只能按值的格式判断
+     * @return {起始值, 结束值}，不是数值类型的参数或不是区间时返回null
+     */
+    static double[] parseRange(CategorySpec spec, String key, String value) {
+        if (spec != null && !spec.isNumerical(key)) {
+            return null;
+        }
+        Matcher matcher = RANGE_PATTERN.matcher(value.trim());
+        return matcher.matches() ? new double[]{Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2))} : null;
+    }
+
+    static boolean isCategoryFilter(String key) {
+        return CATEGORY_FILTER.equals(key) || "cid3".equals(key);
+    }
+
+    static boolean isBrandFilter(String key) {
+        return BRAND_FILTER.equals(key) || "brandId".equals(key);
+    }
+
+    /**
+     * 游标分页：按排序值加id翻页，翻到多深的位置代价都一样。
+     * 游标为空字符串时返回第一页，之后传入上一页返回的nextCursor
+     */
+    private SearchResult searchWithCursor(SearchRequest request, SearchTrace trace, DegradeLevel level) {
+        String sortBy = StringUtils.trimToNull(request.getSortBy());
+        boolean desc = sortBy != null && Boolean.TRUE.equals(request.getDescending());
+        Object[] after = StringUtils.isBlank(request.getCursor()) ? null : decodeCursor(request.getCursor(), sortBy, desc);
+        int size = pageSize(level);
+        searchStatsService.record(trace, SearchStatsService.PHASE_BUILD, trace.elapsed());
+        long queryBegin = System.nanoTime();
+        GoodsHits hits;
+        try {
+            hits = this.searchEngine.searchAfter(request, after, size);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            throw new LyException(ExceptionEnum.INVALID_SEARCH_CURSOR);
+        }
+        searchStatsService.record(trace, SearchStatsService.PHASE_QUERY, System.nanoTime() - queryBegin);
+        SearchResult result = toResult(hits, size);
+        //不满一页说明已经到底
+        if (hits.getItems().size() == size) {
+            result.setNextCursor(encodeCursor(sortBy, desc, hits.getLastSortValues()));
+        }
+        return result;
+    }
+
+//    只有商品和分页信息的结果
+    private SearchResult toResult(GoodsHits hits, int size) {
+        return new SearchResult(hits.getTotal(), (hits.getTotal() + size - 1) / size, hits.getItems(), null, null, null);
     }
-//    构建基本查询条件
-    private void searchWithPageAndSort(NativeSearchQueryBuilder queryBuilder, SearchRequest request) {
-        // 准备分页参数
-        int page = request.getPage();
-        int size = request.getDefaultSize();
-
-        // 1、分页
-        queryBuilder.withPageable(PageRequest.of(page - 1, size));
-        // 2、排序
-        String sortBy = request.getSortBy();
-        Boolean desc = request.getDescending();
-        if (StringUtils.isNotBlank(sortBy)) {
-            // 如果不为空，则进行排序
-            queryBuilder.withSort(SortBuilders.fieldSort(sortBy).order(desc ? SortOrder.DESC : SortOrder.ASC));
+
+    /**
+     * 每页的商品数，降级到最后一级时减小
+     */
+    private int pageSize(DegradeLevel level) {
+        return level.atLeast(DegradeLevel.CAPPED_PAGE) ? Math.min(props.getDegradePageSize(), SearchRequest.getDefaultSize()) : SearchRequest.getDefaultSize();
+    }
+
+    static String encodeCursor(String sortBy, boolean desc, Object[] sortValues) {
+        Map<String, Object> cursor = new HashMap<>();
+        cursor.put("sortBy", sortBy);
+        cursor.put("desc", desc);
+        cursor.put("after", sortValues);
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(JsonUtils.toString(cursor).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析游标，排序条件和生成游标时不一致的视为无效
+     */
+    static Object[] decodeCursor(String token, String sortBy, boolean desc) {
+        Map<String, Object> cursor;
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            cursor = JsonUtils.nativeRead(json, new TypeReference<Map<String, Object>>() {});
+        } catch (IllegalArgumentException e) {
+            cursor = null;
+        }
+        if (cursor == null || !(cursor.get("after") instanceof List)
+                || !Objects.equals(cursor.get("sortBy"), sortBy) || !Objects.equals(cursor.get("desc"), desc)) {
+            throw new LyException(ExceptionEnum.INVALID_SEARCH_CURSOR);
         }
+        return ((List<?>) cursor.get("after")).toArray();
     }
 }
@@ -0,0 +1,153 @@
+package com.leyou.search.service;
+
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.SearchKey;
+import com.leyou.search.utils.SearchTrace;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.elasticsearch.action.search.SearchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索各阶段耗时统计：每个阶段一个带直方图的Timer，超过阈值的慢查询按比例抽样记录日志，
+ * 并保留最近的若干条供actuator端点查看
+ */
+@Service
+@EnableConfigurationProperties(SearchProperties.class)
+public class SearchStatsService {
+
+    /**
+     * 构建查询条件
+     */
+    public static final String PHASE_BUILD = "build";
+    /**
+     * 获取规格模板和数值参数区间
+     */
+    public static final String PHASE_INTERVAL = "interval";
+    /**
+     * elasticsearch主查询
+     */
+    public static final String PHASE_QUERY = "query";
+    public static final String PHASE_CATEGORY = "category";
+    public static final String PHASE_BRAND = "brand";
+    /**
+     * 规格参数聚合，包括只有一个分类时的第二次查询
+     */
+    public static final String PHASE_SPEC = "spec";
+    /**
+     * 封装结果
+     */
+    public static final String PHASE_ASSEMBLE = "assemble";
+    /**
+     * 响应json序列化
+     */
+    public static final String PHASE_SERIALIZE = "serialize";
+    public static final String PHASE_TOTAL = "total";
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private DegradeService degradeService;
+
+    private static final Logger slowLogger = LoggerFactory.getLogger("com.leyou.search.slow");
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Deque<Map<String, Object>> slowQueries = new ArrayDeque<>();
+
+    public void record(SearchTrace trace, String phase, long nanos) {
+        trace.record(phase, nanos);
+        timer(phase).record(nanos, TimeUnit.NANOSECONDS);
+        //查询耗时决定是否需要降级
+        if (PHASE_QUERY.equals(phase)) {
+            degradeService.recordLatency(nanos);
+        }
+    }
+
+    public void recordSerialize(long nanos) {
+        timer(PHASE_SERIALIZE).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 搜索结束时调用，记录总耗时，慢查询按抽样比例写日志
+     */
+    public void finish(SearchTrace trace, SearchKey key) {
+        long total = trace.elapsed();
+        timer(PHASE_TOTAL).record(total, TimeUnit.NANOSECONDS);
+        if (total < props.getSlowThreshold().toNanos()
+                || ThreadLocalRandom.current().nextDouble() >= props.getSlowSampleRate()) {
+            return;
+        }
+        Map<String, Double> phases = trace.getPhaseMillis();
+        slowLogger.warn("慢查询：{}，总耗时{}ms，各阶段耗时(ms)：{}", key, total / 1e6, phases);
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("time", System.currentTimeMillis());
+        entry.put("request", key.toString());
+        entry.put("total", total / 1e6);
+        entry.put("phases", phases);
+        synchronized (slowQueries) {
+            slowQueries.addFirst(entry);
+            while (slowQueries.size() > props.getSlowKeep()) {
+                slowQueries.removeLast();
+            }
+        }
+    }
+
+    /**
+     * 一次查询实际访问的分片数，索引按分类路由后限定了分类的查询只访问分类所在的分片
+     */
+    public void recordShards(String step, SearchResponse response) {
+        DistributionSummary.builder("search.shards").tag("step", step)
+                .description("每次查询访问的分片数")
+                .register(meterRegistry)
+                .record(response.getTotalShards());
+    }
+
+    /**
+     * 最近的慢查询，新的在前
+     */
+    public List<Map<String, Object>> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new ArrayList<>(slowQueries);
+        }
+    }
+
+    /**
+     * 各阶段的次数、平均、最大以及分位耗时(ms)
+     */
+    public Map<String, Map<String, Object>> getPhaseStats() {
+        Map<String, Map<String, Object>> stats = new TreeMap<>();
+        timers.forEach((phase, timer) -> {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("count", timer.count());
+            stat.put("mean", timer.mean(TimeUnit.MILLISECONDS));
+            stat.put("max", timer.max(TimeUnit.MILLISECONDS));
+            Arrays.stream(timer.takeSnapshot().percentileValues()).forEach(p ->
+                    stat.put("p" + Math.round(p.percentile() * 100), p.value(TimeUnit.MILLISECONDS)));
+            stats.put(phase, stat);
+        });
+        return stats;
+    }
+
+    private Timer timer(String phase) {
+        return timers.computeIfAbsent(phase, p -> Timer.builder("search.phase").tag("phase", p)
+                .description("搜索各阶段耗时")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+}
@@ -0,0 +1,169 @@
+package com.leyou.search.service;
+
+import com.leyou.common.utils.NumberUtils;
+import com.leyou.search.pojo.CategorySpec;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 数值类型规格参数的histogram区间，按分类缓存在内存中。启动后、全量构建和回滚后按规格模板计算所有分类，之后由后台定时刷新，
+ * 搜索时不再需要先做一次stats聚合。还没有算出来的分类搜索时不统计数值参数，同时在后台计算
+ */
+@Service
+public class SpecIntervalService {
+
+    @Autowired
+    private GoodsSearchEngine searchEngine;
+
+    @Autowired
+    private SpecTemplateService specTemplateService;
+
+    private static final Logger logger = LoggerFactory.getLogger(SpecIntervalService.class);
+
+    /**
+     * 要显示的区间个数
+     */
+    private static final double INTERVAL_COUNT = 6.0d;
+
+    private final ConcurrentMap<Long, Intervals> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 正在后台计算的分类，同一个分类只提交一次
+     */
+    private final Set<Long> computing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 启动后在后台计算所有分类，不阻塞启动
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        refreshAllAsync();
+    }
+
+    /**
+     * 查询分类下数值参数的区间，不会查询索引。
+     * 缓存中没有或者缺少部分参数时，返回已有的部分并在后台计算，计算完成前搜索结果中没有这些参数的选项
+     * @param cid 三级分类id
+     * @param keys 数值类型的参数名
+     * @return 参数名和区间大小，没有数据或者还没有算出来的参数不会返回
+     */
+    public Map<String, Double> getIntervals(Long cid, Set<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Intervals cached = cache.get(cid);
+        if (cached != null && cached.keys.containsAll(keys)) {
+            return cached.intervals;
+        }
+        if (computing.add(cid)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    cache.put(cid, computeIntervals(cid, keys));
+                } catch (Exception e) {
+                    logger.warn("计算规格参数区间失败，分类id：{}", cid, e);
+                } finally {
+                    computing.remove(cid);
+                }
+            });
+        }
+        return cached == null ? Collections.emptyMap() : cached.intervals;
+    }
+
+    /**
+     * 查询分类下数值参数的区间，缓存中没有时立即计算。只在后台任务和管理接口中使用，不要在搜索时调用
+     */
+    public Map<String, Double> loadIntervals(Long cid, Set<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Intervals cached = cache.get(cid);
+        if (cached != null && cached.keys.containsAll(keys)) {
+            return cached.intervals;
+        }
+        Intervals computed = computeIntervals(cid, keys);
+        cache.put(cid, computed);
+        return computed.intervals;
+    }
+
+    /**
+     * 按规格模板重新计算所有分类的区间，索引数据变化后调用。计算失败的分类保留原来的区间
+     */
+    @Scheduled(fixedDelayString = "${ly.search.spec-interval-refresh:600000}", initialDelayString = "${ly.search.spec-interval-refresh:600000}")
+    public void refreshAll() {
+        Map<Long, Set<String>> keys = new HashMap<>();
+        //模板加载失败的分类按上次的参数计算
+        cache.forEach((cid, intervals) -> keys.put(cid, intervals.keys));
+        try {
+            for (CategorySpec spec : this.specTemplateService.getAllCategorySpecs()) {
+                keys.put(spec.getCid(), spec.getNumericalUnits().keySet());
+            }
+        } catch (Exception e) {
+            logger.warn("查询所有分类的规格模板失败，只刷新已缓存的分类：{}", e.getMessage());
+        }
+        int count = 0;
+        for (Map.Entry<Long, Set<String>> entry : keys.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            try {
+                cache.put(entry.getKey(), computeIntervals(entry.getKey(), entry.getValue()));
+                count++;
+            } catch (Exception e) {
+                logger.warn("刷新规格参数区间失败，分类id：{}", entry.getKey(), e);
+            }
+        }
+        logger.info("规格参数区间已刷新，共{}个分类", count);
+    }
+
+    /**
+     * 在后台执行{@link #refreshAll()}，回滚等管理接口调用时不阻塞请求
+     */
+    public void refreshAllAsync() {
+        CompletableFuture.runAsync(this::refreshAll);
+    }
+
+    private Intervals computeIntervals(Long cid, Set<String> keys) {
+        Map<String, Double> intervals = new HashMap<>();
+        Map<String, double[]> stats = this.searchEngine.stats(cid, keys);
+        stats.forEach((key, stat) -> intervals.put(key, getInterval(stat[0], stat[1], stat[2])));
+        return new Intervals(Collections.unmodifiableSet(new HashSet<>(keys)), Collections.unmodifiableMap(intervals));
+    }
+
+    private double getInterval(double min, double max, Double sum) {
+        //要显示6个区间
+        double interval = (max - min) / INTERVAL_COUNT;
+        //判断是否是小数
+        if (sum.intValue() == sum) {
+            //不是小数，要取整十、整百
+            int length = StringUtils.substringBefore(String.valueOf(interval), ".").length();
+            double factor = Math.pow(10.0, length - 1);
+            interval = Math.round(interval / factor) * factor;
+        } else {
+            //是小数的话就保留一位小数
+            interval = NumberUtils.scale(interval, 1);
+        }
+        //所有值都相同或者差距太小时，histogram的区间不能为0
+        return interval > 0 ? interval : 1;
+    }
+
+    private static class Intervals {
+        private final Set<String> keys;
+        private final Map<String, Double> intervals;
+
+        private Intervals(Set<String> keys, Map<String, Double> intervals) {
+            this.keys = keys;
+            this.intervals = intervals;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.leyou.search.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.item.pojo.Category;
+import com.leyou.search.client.CategoryClient;
+import com.leyou.search.client.SpecificationClient;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.CategorySpec;
+import com.leyou.search.pojo.SearchRequest;
+import feign.FeignException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分类规格模板的本地缓存。缓存的是解析后的CategorySpec，搜索时不需要远程调用和json解析；
+ * 写入一段时间后在后台异步刷新，刷新期间仍返回旧值，规格模板修改后可以主动失效。
+ * 商品微服务修改规格模板时不会发出变更事件，模板修改后最晚一个刷新周期生效，刷新一直失败时最晚在过期后生效
+ */
+@Service
+@EnableConfigurationProperties(SearchProperties.class)
+public class SpecTemplateService {
+
+    @Autowired
+    private SpecificationClient specClient;
+
+    @Autowired
+    private CategoryClient categoryClient;
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final Logger logger = LoggerFactory.getLogger(SpecTemplateService.class);
+
+    private LoadingCache<Long, CategorySpec> cache;
+
+    @PostConstruct
+    public void init() {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(props.getSpecCacheSize())
+                .refreshAfterWrite(props.getSpecCacheRefresh().toMillis(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(props.getSpecCacheExpire().toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(this::load);
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "specTemplate");
+    }
+
+    /**
+     * 查询分类下可搜索的规格参数
+     * @param cid 三级分类id
+     * @return
+     */
+    public CategorySpec getCategorySpec(Long cid) {
+        return this.cache.get(cid);
+    }
+
+    /**
+     * 搜索条件中所选分类的规格参数，用于区分数值类型参数的区间过滤和字符串类型参数的精确过滤
+     * @return 没有选择分类时没有可搜索的参数；规格模板加载失败时返回null
+     */
+    public CategorySpec getFilterSpec(SearchRequest request) {
+        Long cid = SearchService.getCategoryFilter(request);
+        return cid == null ? CategorySpec.empty(null) : findCategorySpec(cid);
+    }
+
+    /**
+     * 和{@link #getCategorySpec}一样，规格模板加载失败时返回null
+     */
+    public CategorySpec findCategorySpec(Long cid) {
+        try {
+            return getCategorySpec(cid);
+        } catch (Exception e) {
+            logger.warn("加载规格模板失败，分类id：{}，{}", cid, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 所有三级分类的规格参数，新建索引时用来生成规格参数的字段，同时预热缓存。加载失败的分类跳过
+     */
+    public List<CategorySpec> getAllCategorySpecs() {
+        List<CategorySpec> specs = new ArrayList<>();
+        for (Category category : this.categoryClient.queryAllCategories()) {
+            if (Boolean.TRUE.equals(category.getIsParent())) {
+                continue;
+            }
+            CategorySpec spec = findCategorySpec(category.getId());
+            if (spec != null) {
+                specs.add(spec);
+            }
+        }
+        return specs;
+    }
+
+    public void invalidate(Long cid) {
+        this.cache.invalidate(cid);
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    private CategorySpec load(Long cid) {
+        String json;
+        try {
+            json = this.specClient.querySpecificationByCategoryId(cid);
+        } catch (FeignException e) {
+            //分类没有规格模板
+            if (e.status() == 404) {
+                return CategorySpec.empty(cid);
+            }
+            throw e;
+        }
+        return parse(cid, json);
+    }
+
+    /**
+     * 过滤出可以搜索的规格参数名称，分成数值类型、字符串类型
+     */
+    private CategorySpec parse(Long cid, String json) {
+        if (StringUtils.isBlank(json)) {
+            return CategorySpec.empty(cid);
+        }
+        JsonNode groups;
+        try {
+            groups = JsonUtils.mapper.readTree(json);
+        } catch (IOException e) {
+            logger.error("规格模板解析出错，分类id：{}", cid, e);
+            return CategorySpec.empty(cid);
+        }
+        Set<String> strSpec = new LinkedHashSet<>();
+        Map<String, String> numericalUnits = new HashMap<>();
+        for (JsonNode group : groups) {
+            for (JsonNode param : group.path("params")) {
+                if (!param.path("searchable").asBoolean()) {
+                    continue;
+                }
+                String k = param.path("k").asText();
+                if (param.path("numerical").asBoolean()) {
+                    numericalUnits.put(k, param.path("unit").asText(""));
+                } else {
+                    strSpec.add(k);
+                }
+            }
+        }
+        return new CategorySpec(cid, strSpec, numericalUnits);
+    }
+}
@@ -0,0 +1,274 @@
+package com.leyou.search.service;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.leyou.item.pojo.Brand;
+import com.leyou.item.pojo.Category;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.Goods;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索框输入提示。标题、品牌名称、分类名称按小写前缀排序后放在数组中，二分查找前缀，
+ * 查询时不访问elasticsearch；权重是包含该词的商品数。
+ * 启动时和全量构建索引后从索引中加载全部spu，之后根据增量更新修改本地数据，定时重新生成数组
+ */
+@Service
+@EnableConfigurationProperties(SearchProperties.class)
+public class SuggestService {
+
+    @Autowired
+    private DictionaryService dictionaryService;
+
+    @Autowired
+    private SearchProperties props;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private GoodsSearchEngine searchEngine;
+
+    private static final Logger logger = LoggerFactory.getLogger(SuggestService.class);
+
+    /**
+     * 每个spu中生成提示词需要的字段，key是spuId
+     */
+    private LongObjectHashMap<SpuEntry> spus = new LongObjectHashMap<>();
+
+    /**
+     * 全量加载期间收到的增量修改，加载完成后再应用一次，value为null表示删除
+     */
+    private Map<Long, SpuEntry> pending;
+
+    private volatile boolean dirty;
+
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0], new int[0]);
+
+    private Timer suggestTimer;
+
+    @PostConstruct
+    public void init() {
+        this.suggestTimer = Timer.builder("search.suggest").description("输入提示耗时").register(meterRegistry);
+        meterRegistry.gauge("search.suggest.entries", this, s -> s.snapshot.keys.length);
+    }
+
+    /**
+     * 查询以key开头的提示词，按权重从大到小排列
+     * @param key 用户已经输入的内容
+     * @param size 最多返回的条数
+     */
+    public List<String> suggest(String key, int size) {
+        long begin = System.nanoTime();
+        String prefix = normalize(key);
+        if (prefix.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Snapshot current = this.snapshot;
+        int from = Arrays.binarySearch(current.keys, prefix);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        //小根堆保留权重最大的size个，前缀很短时最多只扫描scanLimit条
+        PriorityQueue<Integer> top = new PriorityQueue<>(size + 1, Comparator.comparingInt(i -> current.weights[i]));
+        int to = Math.min(current.keys.length, from + props.getSuggestScanLimit());
+        for (int i = from; i < to && current.keys[i].startsWith(prefix); i++) {
+            top.offer(i);
+            if (top.size() > size) {
+                top.poll();
+            }
+        }
+        List<Integer> indexes = new ArrayList<>(top);
+        indexes.sort((a, b) -> current.weights[a] != current.weights[b]
+                ? Integer.compare(current.weights[b], current.weights[a])
+                : Integer.compare(current.keys[a].length(), current.keys[b].length()));
+        List<String> result = new ArrayList<>(indexes.size());
+        for (Integer i : indexes) {
+            result.add(current.texts[i]);
+        }
+        suggestTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    /**
+     * 从索引中全量加载
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${ly.search.suggest-reload:3600000}")
+    public void reload() {
+        synchronized (this) {
+            if (pending != null) {
+                return;
+            }
+            pending = new HashMap<>();
+        }
+        LongObjectHashMap<SpuEntry> loaded = new LongObjectHashMap<>();
+        try {
+            scan(loaded);
+        } catch (Exception e) {
+            logger.warn("输入提示加载失败：{}", e.getMessage());
+            synchronized (this) {
+                pending = null;
+            }
+            return;
+        }
+        synchronized (this) {
+            for (Map.Entry<Long, SpuEntry> entry : pending.entrySet()) {
+                if (entry.getValue() == null) {
+                    loaded.remove(entry.getKey());
+                } else {
+                    loaded.put(entry.getKey(), entry.getValue());
+                }
+            }
+            spus = loaded;
+            pending = null;
+        }
+        rebuild();
+        logger.info("输入提示加载完成，商品{}个，提示词{}个", loaded.size(), snapshot.keys.length);
+    }
+
+    /**
+     * 增量更新索引后调用，只修改本地数据，由定时任务重新生成数组
+     */
+    public synchronized void update(List<Goods> upserts, List<Long> deletes) {
+        for (Goods goods : upserts) {
+            SpuEntry entry = new SpuEntry(goods.getTitle(), goods.getBrandId(), goods.getCid3());
+            spus.put(goods.getId(), entry);
+            if (pending != null) {
+                pending.put(goods.getId(), entry);
+            }
+        }
+        for (Long id : deletes) {
+            spus.remove(id);
+            if (pending != null) {
+                pending.put(id, null);
+            }
+        }
+        dirty = true;
+    }
+
+    @Scheduled(fixedDelayString = "${ly.search.suggest-rebuild:5000}")
+    public void rebuildIfDirty() {
+        if (dirty) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 统计每个提示词的商品数，生成新的数组整体替换
+     */
+    private void rebuild() {
+        int maxLength = props.getSuggestMaxLength();
+        Map<String, String> texts = new HashMap<>();
+        Map<String, Integer> weights = new HashMap<>();
+        LongIntHashMap brandCounts = new LongIntHashMap();
+        LongIntHashMap categoryCounts = new LongIntHashMap();
+        synchronized (this) {
+            dirty = false;
+            for (ObjectCursor<SpuEntry> cursor : spus.values()) {
+                SpuEntry spu = cursor.value;
+                add(texts, weights, StringUtils.left(spu.title, maxLength), 1);
+                if (spu.brandId != null) {
+                    brandCounts.addTo(spu.brandId, 1);
+                }
+                if (spu.cid3 != null) {
+                    categoryCounts.addTo(spu.cid3, 1);
+                }
+            }
+        }
+        List<Brand> brands = dictionaryService.getBrands(toList(brandCounts));
+        for (Brand brand : brands) {
+            add(texts, weights, brand.getName(), brandCounts.get(brand.getId()));
+        }
+        List<Category> categories = dictionaryService.getCategories(toList(categoryCounts));
+        if (categories.size() < categoryCounts.size()) {
+            //分类字典还没有加载完，稍后再生成一次
+            dirty = true;
+        }
+        for (Category category : categories) {
+            add(texts, weights, category.getName(), categoryCounts.get(category.getId()));
+        }
+
+        String[] keys = texts.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        String[] displays = new String[keys.length];
+        int[] counts = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            displays[i] = texts.get(keys[i]);
+            counts[i] = weights.get(keys[i]);
+        }
+        this.snapshot = new Snapshot(keys, displays, counts);
+    }
+
+    private void add(Map<String, String> texts, Map<String, Integer> weights, String text, int weight) {
+        String key = normalize(text);
+        if (key.isEmpty()) {
+            return;
+        }
+        texts.putIfAbsent(key, text.trim());
+        weights.merge(key, weight, Integer::sum);
+    }
+
+    private List<Long> toList(LongIntHashMap counts) {
+        List<Long> ids = new ArrayList<>(counts.size());
+        for (LongIntCursor cursor : counts) {
+            ids.add(cursor.key);
+        }
+        return ids;
+    }
+
+    /**
+     * 遍历索引中的全部商品，只取生成提示词需要的字段
+     */
+    private void scan(LongObjectHashMap<SpuEntry> loaded) {
+        this.searchEngine.forEach(goods -> loaded.put(goods.getId(),
+                new SpuEntry(goods.getTitle(), goods.getBrandId(), goods.getCid3())));
+    }
+
+    /**
+     * 去掉多余空白并转小写
+     */
+    private static String normalize(String text) {
+        return StringUtils.join(StringUtils.split(StringUtils.defaultString(text)), " ").toLowerCase();
+    }
+
+    private static final class SpuEntry {
+        private final String title;
+        private final Long brandId;
+        private final Long cid3;
+
+        SpuEntry(String title, Long brandId, Long cid3) {
+            this.title = title;
+            this.brandId = brandId;
+            this.cid3 = cid3;
+        }
+    }
+
+    /**
+     * 按keys排序的三个平行数组，生成后不再修改
+     */
+    private static final class Snapshot {
+        private final String[] keys;
+        private final String[] texts;
+        private final int[] weights;
+
+        Snapshot(String[] keys, String[] texts, int[] weights) {
+            this.keys = keys;
+            this.texts = texts;
+            this.weights = weights;
+        }
+    }
+}
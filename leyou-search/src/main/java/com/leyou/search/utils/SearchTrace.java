@@ -0,0 +1,38 @@
+package com.leyou.search.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 一次搜索各个阶段的耗时。聚合结果在其它线程中解析，记录时需要加锁
+ */
+public class SearchTrace {
+
+    private final long begin = System.nanoTime();
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public synchronized void record(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * 从开始到现在的耗时(ns)
+     */
+    public long elapsed() {
+        return System.nanoTime() - begin;
+    }
+
+    public long getBegin() {
+        return begin;
+    }
+
+    /**
+     * 各阶段耗时(ms)，按记录的先后顺序
+     */
+    public synchronized Map<String, Double> getPhaseMillis() {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        phases.forEach((phase, nanos) -> millis.put(phase, nanos / 1e6));
+        return millis;
+    }
+}
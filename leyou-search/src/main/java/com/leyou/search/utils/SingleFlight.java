@@ -0,0 +1,81 @@
+package com.leyou.search.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * 合并相同key的并发调用：第一个到达的线程执行，执行期间到达的线程等待同一个结果。
+ * 等待的线程超时或被中断只是自己放弃等待，不会影响正在执行的调用；
+ * 执行结束后立即移除，之后的调用会重新执行
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    private final Counter leaderCounter;
+    private final Counter collapsedCounter;
+    private final Counter timeoutCounter;
+
+    public SingleFlight(MeterRegistry meterRegistry, String name) {
+        this.leaderCounter = Counter.builder(name + ".singleflight").tag("role", "leader")
+                .description("实际执行的调用数").register(meterRegistry);
+        this.collapsedCounter = Counter.builder(name + ".singleflight").tag("role", "collapsed")
+                .description("合并到正在执行的调用上的请求数").register(meterRegistry);
+        this.timeoutCounter = Counter.builder(name + ".singleflight").tag("role", "timeout")
+                .description("等待超时放弃的请求数").register(meterRegistry);
+    }
+
+    /**
+     * @param key 相同key的调用会被合并
+     * @param supplier 实际的调用，由第一个到达的线程执行
+     * @param timeout 等待其它线程执行结果的最长时间
+     * @throws TimeoutException 等待超时
+     */
+    public V execute(K key, Supplier<V> supplier, long timeout, TimeUnit unit) throws TimeoutException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            leaderCounter.increment();
+            try {
+                V value = supplier.get();
+                flight.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                flights.remove(key, flight);
+            }
+        }
+        collapsedCounter.increment();
+        try {
+            return existing.get(timeout, unit);
+        } catch (TimeoutException e) {
+            timeoutCounter.increment();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("等待合并的调用时被中断");
+        } catch (ExecutionException e) {
+            //与执行的线程抛出相同的异常
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+
+    /**
+     * 正在执行的调用数
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+}
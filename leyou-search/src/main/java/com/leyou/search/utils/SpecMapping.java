@@ -0,0 +1,283 @@
+package com.leyou.search.utils;
+
+import com.leyou.search.pojo.CategorySpec;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.nested.Nested;
+import org.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+
+import java.util.*;
+
+/**
+ * 规格参数在索引中的存储方式，决定文档中规格参数的结构、过滤条件和聚合的写法。
+ * 新建的索引在mapping的_meta中记录使用的方式，查询时按读别名指向的索引选择
+ */
+public enum SpecMapping {
+
+    /**
+     * 旧的动态mapping：specs下每个参数名都是一个text字段加.keyword子字段，数值参数是long或double
+     */
+    DYNAMIC {
+        @Override
+        public Map<String, Object> toSource(Map<String, Object> specs, CategorySpec spec) {
+            return Collections.singletonMap("specs", specs);
+        }
+
+        @Override
+        public QueryBuilder termQuery(String key, String value) {
+            return QueryBuilders.termQuery("specs." + key + ".keyword", value);
+        }
+
+        @Override
+        public QueryBuilder rangeQuery(String key, double from, double to) {
+            return QueryBuilders.rangeQuery("specs." + key).gte(from).lt(to);
+        }
+
+        @Override
+        protected <T extends ValuesSourceAggregationBuilder<?, ?>> AbstractAggregationBuilder<?> wrap(String name, String key, T agg, boolean numeric) {
+            return agg.field(numeric ? "specs." + key : "specs." + key + ".keyword");
+        }
+    },
+
+    /**
+     * 字符串参数放在specs下，只有keyword；数值参数放在specNumbers下，都是double。
+     * 新建索引时按规格模板生成每个参数的字段，模板中没有的参数由mapping/specs-typed.json中的dynamic_templates兜底，
+     * 字段数只有原来的一半，同名参数在不同分类中类型不同也不会冲突
+     */
+    TYPED {
+        @Override
+        public Map<String, Object> toSource(Map<String, Object> specs, CategorySpec spec) {
+            Map<String, Object> strings = new HashMap<>();
+            Map<String, Object> numbers = new HashMap<>();
+            specs.forEach((key, value) -> {
+                if (!isNumerical(spec, key, value)) {
+                    strings.put(key, value);
+                    return;
+                }
+                Object number = toNumbers(value);
+                if (number != null) {
+                    numbers.put(key, number);
+                }
+            });
+            Map<String, Object> source = new HashMap<>();
+            source.put("specs", strings);
+            source.put("specNumbers", numbers);
+            return source;
+        }
+
+        @Override
+        public Map<String, Object> properties(Collection<CategorySpec> specs) {
+            Map<String, Object> keywords = new TreeMap<>();
+            Map<String, Object> numbers = new TreeMap<>();
+            for (CategorySpec spec : specs) {
+                spec.getStrSpec().forEach(key -> keywords.put(key, KEYWORD_FIELD));
+                spec.getNumericalUnits().keySet().forEach(key -> numbers.put(key, DOUBLE_FIELD));
+            }
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("specs", objectField(keywords));
+            properties.put("specNumbers", objectField(numbers));
+            return properties;
+        }
+
+        @Override
+        public QueryBuilder termQuery(String key, String value) {
+            return QueryBuilders.termQuery("specs." + key, value);
+        }
+
+        @Override
+        public QueryBuilder rangeQuery(String key, double from, double to) {
+            return QueryBuilders.rangeQuery("specNumbers." + key).gte(from).lt(to);
+        }
+
+        @Override
+        protected <T extends ValuesSourceAggregationBuilder<?, ?>> AbstractAggregationBuilder<?> wrap(String name, String key, T agg, boolean numeric) {
+            return agg.field(numeric ? "specNumbers." + key : "specs." + key);
+        }
+    },
+
+    /**
+     * 所有参数展开成specPairs嵌套文档{k, v, n}，不管有多少种参数，mapping中都只有这三个字段
+     */
+    NESTED {
+        @Override
+        public Map<String, Object> toSource(Map<String, Object> specs, CategorySpec spec) {
+            List<Map<String, Object>> pairs = new ArrayList<>();
+            specs.forEach((key, value) -> {
+                boolean numerical = isNumerical(spec, key, value);
+                for (Object v : value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value)) {
+                    Object n = numerical ? toNumber(v) : v;
+                    if (n == null) {
+                        continue;
+                    }
+                    Map<String, Object> pair = new HashMap<>();
+                    pair.put("k", key);
+                    pair.put(numerical ? "n" : "v", n);
+                    pairs.add(pair);
+                }
+            });
+            return Collections.singletonMap(NESTED_PATH, pairs);
+        }
+
+        @Override
+        public QueryBuilder termQuery(String key, String value) {
+            return QueryBuilders.nestedQuery(NESTED_PATH, QueryBuilders.boolQuery()
+                    .filter(QueryBuilders.termQuery(NESTED_PATH + ".k", key))
+                    .filter(QueryBuilders.termQuery(NESTED_PATH + ".v", value)), ScoreMode.None);
+        }
+
+        @Override
+        public QueryBuilder rangeQuery(String key, double from, double to) {
+            return QueryBuilders.nestedQuery(NESTED_PATH, QueryBuilders.boolQuery()
+                    .filter(QueryBuilders.termQuery(NESTED_PATH + ".k", key))
+                    .filter(QueryBuilders.rangeQuery(NESTED_PATH + ".n").gte(from).lt(to)), ScoreMode.None);
+        }
+
+        @Override
+        protected <T extends ValuesSourceAggregationBuilder<?, ?>> AbstractAggregationBuilder<?> wrap(String name, String key, T agg, boolean numeric) {
+            //nested聚合 -> 只保留这个参数的filter聚合 -> 实际的聚合，三层同名
+            return AggregationBuilders.nested(name, NESTED_PATH).subAggregation(
+                    AggregationBuilders.filter(name, QueryBuilders.termQuery(NESTED_PATH + ".k", key))
+                            .subAggregation(agg.field(NESTED_PATH + (numeric ? ".n" : ".v"))));
+        }
+
+        @Override
+        public Aggregation unwrap(Aggregation aggregation) {
+            if (aggregation instanceof Nested) {
+                Filter filter = ((Nested) aggregation).getAggregations().get(aggregation.getName());
+                return filter.getAggregations().get(aggregation.getName());
+            }
+            return aggregation;
+        }
+    };
+
+    private static final String NESTED_PATH = "specPairs";
+
+    private static final Map<String, Object> KEYWORD_FIELD;
+    private static final Map<String, Object> DOUBLE_FIELD = Collections.singletonMap("type", "double");
+
+    static {
+        Map<String, Object> keyword = new HashMap<>();
+        keyword.put("type", "keyword");
+        keyword.put("ignore_above", 256);
+        KEYWORD_FIELD = Collections.unmodifiableMap(keyword);
+    }
+
+    /**
+     * 文档中规格参数部分的字段。数值类型的参数按规格模板判断，值转换成数字，转换不了的值不写入
+     * @param specs 参数名和参数值，值是字符串、数字或者它们的列表
+     * @param spec 商品所在分类的规格参数，为null时规格模板不可用，按值的类型判断
+     */
+    public abstract Map<String, Object> toSource(Map<String, Object> specs, CategorySpec spec);
+
+    /**
+     * 新建索引时mapping中规格参数部分明确的字段，按规格模板区分数值和字符串类型
+     * @param specs 所有分类的规格参数
+     * @return 和mapping的properties合并，不需要明确字段时为空
+     */
+    public Map<String, Object> properties(Collection<CategorySpec> specs) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * 字符串参数的精确过滤
+     */
+    public abstract QueryBuilder termQuery(String key, String value);
+
+    /**
+     * 数值参数左闭右开的区间过滤
+     */
+    public abstract QueryBuilder rangeQuery(String key, double from, double to);
+
+    protected abstract <T extends ValuesSourceAggregationBuilder<?, ?>> AbstractAggregationBuilder<?> wrap(String name, String key, T agg, boolean numeric);
+
+    public AbstractAggregationBuilder<?> termsAgg(String name, String key) {
+        return wrap(name, key, AggregationBuilders.terms(name), false);
+    }
+
+    public AbstractAggregationBuilder<?> histogramAgg(String name, String key, double interval) {
+        return wrap(name, key, AggregationBuilders.histogram(name).interval(interval).minDocCount(1), true);
+    }
+
+    public AbstractAggregationBuilder<?> statsAgg(String name, String key) {
+        return wrap(name, key, AggregationBuilders.stats(name), true);
+    }
+
+    /**
+     * 从聚合结果中取出termsAgg、histogramAgg、statsAgg对应的聚合
+     */
+    public Aggregation unwrap(Aggregation aggregation) {
+        return aggregation;
+    }
+
+    /**
+     * 写在mapping的_meta中的名称
+     */
+    public String getName() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * @param name 配置或者_meta中的名称，为空时是旧的动态mapping
+     */
+    public static SpecMapping of(String name) {
+        return name == null ? DYNAMIC : valueOf(name.trim().toUpperCase());
+    }
+
+    private static boolean isNumerical(CategorySpec spec, String key, Object value) {
+        return spec != null ? spec.isNumerical(key) : isNumeric(value);
+    }
+
+    /**
+     * 数字或数字组成的字符串转换成数字，其它返回null
+     */
+    private static Number toNumber(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 单个值或列表中的每个值转换成数字，没有可以转换的值时返回null
+     */
+    private static Object toNumbers(Object value) {
+        if (!(value instanceof Collection)) {
+            return toNumber(value);
+        }
+        List<Number> numbers = new ArrayList<>();
+        for (Object v : (Collection<?>) value) {
+            Number number = toNumber(v);
+            if (number != null) {
+                numbers.add(number);
+            }
+        }
+        return numbers.isEmpty() ? null : numbers;
+    }
+
+    private static Map<String, Object> objectField(Map<String, Object> properties) {
+        Map<String, Object> field = new HashMap<>();
+        field.put("type", "object");
+        field.put("properties", properties);
+        return field;
+    }
+
+    private static boolean isNumeric(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            return !values.isEmpty() && values.stream().allMatch(v -> v instanceof Number);
+        }
+        return value instanceof Number;
+    }
+}
@@ -0,0 +1,115 @@
+package com.leyou.search.pojo;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SearchKeyTest {
+
+    @Test
+    public void keywordIsTrimmedCollapsedAndLowerCased() {
+        SearchKey a = SearchKey.of(new SearchRequest("  Apple   iPhone\t", 1));
+        SearchKey b = SearchKey.of(new SearchRequest("apple iphone", 1));
+
+        assertThat(a.getKey()).isEqualTo("apple iphone");
+        assertThat(a).isEqualTo(b).hasSameHashCodeAs(b);
+    }
+
+    @Test
+    public void nullKeywordAndPageUseDefaults() {
+        SearchKey key = SearchKey.of(new SearchRequest(null, null));
+
+        assertThat(key.getKey()).isEmpty();
+        assertThat(key).isEqualTo(SearchKey.of(new SearchRequest("", 1)));
+    }
+
+    @Test
+    public void blankFilterEntriesAreDroppedAndValuesTrimmed() {
+        Map<String, String> filter = new HashMap<>();
+        filter.put("品牌", " 8557 ");
+        filter.put("CPU核数", "");
+        filter.put(" ", "x");
+        filter.put("分类", null);
+        SearchRequest request = new SearchRequest("手机", 1);
+        request.setFilter(filter);
+
+        SearchKey key = SearchKey.of(request);
+
+        assertThat(key.getFilter()).containsOnlyKeys("品牌").containsEntry("品牌", "8557");
+    }
+
+    @Test
+    public void filterOrderDoesNotMatter() {
+        Map<String, String> first = new HashMap<>();
+        first.put("品牌", "8557");
+        first.put("分类", "76");
+        Map<String, String> second = new LinkedHashMap<>();
+        second.put("分类", "76");
+        second.put("品牌", "8557");
+
+        assertThat(SearchKey.of(request(first))).isEqualTo(SearchKey.of(request(second)));
+    }
+
+    @Test
+    public void descendingIsIgnoredWithoutSortField() {
+        SearchRequest asc = new SearchRequest("手机", 1);
+        SearchRequest desc = new SearchRequest("手机", 1);
+        desc.setSortBy("  ");
+        desc.setDescending(true);
+
+        assertThat(SearchKey.of(asc)).isEqualTo(SearchKey.of(desc));
+    }
+
+    @Test
+    public void sortAndPageAreSignificant() {
+        SearchRequest byPrice = new SearchRequest("手机", 1);
+        byPrice.setSortBy("price");
+        SearchRequest byPriceDesc = new SearchRequest("手机", 1);
+        byPriceDesc.setSortBy("price");
+        byPriceDesc.setDescending(true);
+
+        assertThat(SearchKey.of(byPrice)).isNotEqualTo(SearchKey.of(byPriceDesc));
+        assertThat(SearchKey.of(new SearchRequest("手机", 1))).isNotEqualTo(SearchKey.of(new SearchRequest("手机", 2)));
+    }
+
+    @Test
+    public void emptyCursorDiffersFromNoCursor() {
+        SearchRequest paged = new SearchRequest("手机", 1);
+        SearchRequest firstCursorPage = new SearchRequest("手机", 1);
+        firstCursorPage.setCursor(" ");
+
+        assertThat(SearchKey.of(paged)).isNotEqualTo(SearchKey.of(firstCursorPage));
+    }
+
+    @Test
+    public void toRequestRoundTrips() {
+        Map<String, String> filter = new HashMap<>();
+        filter.put("分类", "76");
+        SearchRequest request = request(filter);
+        request.setKey(" Mi  Phone ");
+        request.setSortBy("price");
+        request.setDescending(true);
+        SearchKey key = SearchKey.of(request);
+
+        SearchRequest copy = key.toRequest();
+
+        assertThat(copy.getKey()).isEqualTo("mi phone");
+        assertThat(copy.getSortBy()).isEqualTo("price");
+        assertThat(copy.getDescending()).isTrue();
+        assertThat(copy.getFilter()).containsEntry("分类", "76");
+        assertThat(SearchKey.of(copy)).isEqualTo(key);
+        //复制出来的过滤条件可以修改，不影响原来的key
+        copy.getFilter().put("品牌", "8557");
+        assertThat(key.getFilter()).doesNotContainKey("品牌");
+    }
+
+    private SearchRequest request(Map<String, String> filter) {
+        SearchRequest request = new SearchRequest("手机", 1);
+        request.setFilter(filter);
+        return request;
+    }
+}
@@ -0,0 +1,50 @@
+package com.leyou.search.service;
+
+import com.leyou.common.pojo.PageResult;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.SkuSummary;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SearchCacheWeightTest {
+
+    @Test
+    public void utf8LengthMatchesEncodedBytes() {
+        for (String s : new String[]{"", "iPhone 11", "华为 Mate30 Pro 5G", "é", "手机📱"}) {
+            assertThat(SearchCacheService.utf8Length(s)).as(s).isEqualTo(s.getBytes(StandardCharsets.UTF_8).length);
+        }
+        assertThat(SearchCacheService.utf8Length(null)).isZero();
+    }
+
+    @Test
+    public void chineseTitlesWeighThreeBytesPerChar() {
+        int ascii = SearchCacheService.estimateBytes(page("abcdef"));
+        int chinese = SearchCacheService.estimateBytes(page("华为小米手机"));
+
+        //标题和sku标题各6个字符，中文每个字符多2个字节
+        assertThat(chinese - ascii).isEqualTo(2 * 6 * 2);
+    }
+
+    @Test
+    public void emptyPageHasFixedWeight() {
+        assertThat(SearchCacheService.estimateBytes(new PageResult<>(0L, Collections.emptyList())))
+                .isEqualTo(SearchCacheService.estimateBytes(new PageResult<>(0L, null)))
+                .isPositive();
+    }
+
+    private PageResult<Goods> page(String title) {
+        SkuSummary sku = new SkuSummary();
+        sku.setTitle(title);
+        sku.setImage("http://image.leyou.com/1.jpg");
+        Goods goods = new Goods();
+        goods.setId(1L);
+        goods.setSubTitle(title);
+        goods.setPrice(Collections.singletonList(1999L));
+        goods.setSkus(Collections.singletonList(sku));
+        return new PageResult<>(1L, Collections.singletonList(goods));
+    }
+}
@@ -0,0 +1,137 @@
+package com.leyou.search.service;
+
+import com.leyou.common.enums.ExceptionEnum;
+import com.leyou.common.exception.LyException;
+import com.leyou.search.config.SearchProperties;
+import com.leyou.search.pojo.Goods;
+import com.leyou.search.pojo.GoodsHits;
+import com.leyou.search.pojo.SearchRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SearchCursorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LuceneGoodsService engine;
+
+    @Before
+    public void setUp() throws Exception {
+        SearchProperties props = new SearchProperties();
+        props.setLucenePath(folder.getRoot().getAbsolutePath());
+        engine = new LuceneGoodsService();
+        ReflectionTestUtils.setField(engine, "props", props);
+        engine.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.destroy();
+    }
+
+    @Test
+    public void cursorRoundTrip() {
+        String token = SearchService.encodeCursor("price", true, new Object[]{1999L, 7L});
+
+        Object[] after = SearchService.decodeCursor(token, "price", true);
+
+        assertThat(after).hasSize(2);
+        assertThat(((Number) after[0]).longValue()).isEqualTo(1999L);
+        assertThat(((Number) after[1]).longValue()).isEqualTo(7L);
+        //url安全，可以直接放在查询参数中
+        assertThat(token).doesNotContain("+", "/", "=");
+    }
+
+    @Test
+    public void cursorWithoutSortFieldRoundTrip() {
+        String token = SearchService.encodeCursor(null, false, new Object[]{1.5f, 3L});
+
+        Object[] after = SearchService.decodeCursor(token, null, false);
+
+        assertThat(((Number) after[0]).floatValue()).isEqualTo(1.5f);
+        assertThat(((Number) after[1]).longValue()).isEqualTo(3L);
+    }
+
+    @Test
+    public void cursorWithDifferentSortIsRejected() {
+        String token = SearchService.encodeCursor("price", true, new Object[]{1999L, 7L});
+
+        assertInvalid(() -> SearchService.decodeCursor(token, "createTime", true));
+        assertInvalid(() -> SearchService.decodeCursor(token, "price", false));
+    }
+
+    @Test
+    public void malformedCursorIsRejected() {
+        assertInvalid(() -> SearchService.decodeCursor("not base64!", "price", true));
+        String notJson = Base64.getUrlEncoder().encodeToString("abc".getBytes(StandardCharsets.UTF_8));
+        assertInvalid(() -> SearchService.decodeCursor(notJson, "price", true));
+        String noAfter = Base64.getUrlEncoder().encodeToString("{\"sortBy\":\"price\",\"desc\":true}".getBytes(StandardCharsets.UTF_8));
+        assertInvalid(() -> SearchService.decodeCursor(noAfter, "price", true));
+    }
+
+    @Test
+    public void equalSortValuesArePagedByIdWithoutGapsOrDuplicates() {
+        List<Goods> goodsList = new ArrayList<>();
+        for (long id = 1; id <= 7; id++) {
+            //价格完全相同，只能靠id区分先后
+            goodsList.add(goods(id, 1999L));
+        }
+        Collections.shuffle(goodsList, new Random(42));
+        engine.apply(goodsList, Collections.emptyList());
+        SearchRequest request = new SearchRequest("手机", 1);
+        request.setSortBy("price");
+        request.setDescending(true);
+
+        List<Long> ids = new ArrayList<>();
+        Object[] after = null;
+        for (int i = 0; i < 10; i++) {
+            GoodsHits hits = engine.searchAfter(request, after, 3);
+            hits.getItems().forEach(goods -> ids.add(goods.getId()));
+            if (hits.getItems().size() < 3) {
+                break;
+            }
+            //和接口一样经过游标编码，json中的数字类型会变化
+            String token = SearchService.encodeCursor("price", true, hits.getLastSortValues());
+            after = SearchService.decodeCursor(token, "price", true);
+        }
+
+        assertThat(ids).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L);
+    }
+
+    @Test
+    public void sortValueMismatchIsIllegalArgument() {
+        engine.apply(Collections.singletonList(goods(1L, 1999L)), Collections.emptyList());
+        SearchRequest request = new SearchRequest("手机", 1);
+        request.setSortBy("price");
+
+        assertThatThrownBy(() -> engine.searchAfter(request, new Object[]{1999L}, 3))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private Goods goods(long id, long price) {
+        Goods goods = new Goods();
+        goods.setId(id);
+        goods.setAll("手机 " + id);
+        goods.setCid3(76L);
+        goods.setBrandId(8557L);
+        goods.setPrice(Collections.singletonList(price));
+        goods.setSkus(Collections.emptyList());
+        return goods;
+    }
+
+    private void assertInvalid(Runnable decode) {
+        assertThatThrownBy(decode::run).isInstanceOfSatisfying(LyException.class,
+                e -> assertThat(e.getExceptionEnum()).isEqualTo(ExceptionEnum.INVALID_SEARCH_CURSOR));
+    }
+}
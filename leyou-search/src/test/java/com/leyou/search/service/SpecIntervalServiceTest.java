@@ -0,0 +1,86 @@
+package com.leyou.search.service;
+
+import com.leyou.search.pojo.CategorySpec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpecIntervalServiceTest {
+
+    @Mock
+    private GoodsSearchEngine searchEngine;
+
+    @Mock
+    private SpecTemplateService specTemplateService;
+
+    @InjectMocks
+    private SpecIntervalService specIntervalService;
+
+    private final Set<String> keys = Collections.singleton("屏幕尺寸");
+
+    @Test
+    public void missReturnsNothingAndComputesInBackground() {
+        when(searchEngine.stats(eq(76L), anySet())).thenReturn(stats(4.0d, 7.0d, 11.5d));
+
+        //第一次搜索不等待stats聚合
+        assertThat(specIntervalService.getIntervals(76L, keys)).isEmpty();
+
+        verify(searchEngine, timeout(5000)).stats(eq(76L), anySet());
+        Map<String, Double> intervals = awaitIntervals(76L);
+        assertThat(intervals).containsEntry("屏幕尺寸", 0.5d);
+        //之后直接从缓存返回
+        specIntervalService.getIntervals(76L, keys);
+        verify(searchEngine, times(1)).stats(any(), anySet());
+    }
+
+    @Test
+    public void refreshAllComputesEveryTemplateCategory() {
+        when(specTemplateService.getAllCategorySpecs()).thenReturn(Arrays.asList(
+                new CategorySpec(76L, Collections.singleton("CPU品牌"), Collections.singletonMap("屏幕尺寸", "英寸")),
+                //没有数值参数的分类不需要统计
+                new CategorySpec(77L, Collections.singleton("颜色"), Collections.emptyMap())));
+        when(searchEngine.stats(eq(76L), anySet())).thenReturn(stats(0.0d, 600.0d, 1200.0d));
+
+        specIntervalService.refreshAll();
+
+        verify(searchEngine).stats(76L, keys);
+        verify(searchEngine, never()).stats(eq(77L), anySet());
+        assertThat(specIntervalService.getIntervals(76L, keys)).containsEntry("屏幕尺寸", 100.0d);
+    }
+
+    @Test
+    public void loadIntervalsComputesImmediately() {
+        when(searchEngine.stats(eq(76L), anySet())).thenReturn(stats(0.0d, 600.0d, 1200.0d));
+
+        assertThat(specIntervalService.loadIntervals(76L, keys)).containsEntry("屏幕尺寸", 100.0d);
+        assertThat(specIntervalService.getIntervals(76L, keys)).containsEntry("屏幕尺寸", 100.0d);
+    }
+
+    private Map<String, double[]> stats(double min, double max, double sum) {
+        return Collections.singletonMap("屏幕尺寸", new double[]{min, max, sum});
+    }
+
+    private Map<String, Double> awaitIntervals(Long cid) {
+        long deadline = System.currentTimeMillis() + 5000;
+        Map<String, Double> intervals = specIntervalService.getIntervals(cid, keys);
+        while (intervals.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+            intervals = specIntervalService.getIntervals(cid, keys);
+        }
+        return intervals;
+    }
+}
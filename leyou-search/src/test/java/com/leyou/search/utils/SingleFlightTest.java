@@ -0,0 +1,185 @@
+package com.leyou.search.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTest {
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private SingleFlight<String, String> singleFlight;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        singleFlight = new SingleFlight<>(meterRegistry, "test");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void leaderExecutesAndReturnsValue() throws Exception {
+        String value = singleFlight.execute("k", () -> "v", 1, TimeUnit.SECONDS);
+
+        assertThat(value).isEqualTo("v");
+        assertThat(singleFlight.inFlight()).isZero();
+        assertThat(count("leader")).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentCallsWithSameKeyAreCollapsed() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> leader = executor.submit(() -> singleFlight.execute("k", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "v";
+        }, 5, TimeUnit.SECONDS));
+        started.await();
+
+        Future<String> follower = executor.submit(() -> singleFlight.execute("k", () -> {
+            calls.incrementAndGet();
+            return "other";
+        }, 5, TimeUnit.SECONDS));
+        waitForCollapsed(1);
+        release.countDown();
+
+        assertThat(leader.get()).isEqualTo("v");
+        assertThat(follower.get()).isEqualTo("v");
+        assertThat(calls.get()).isEqualTo(1);
+        //执行结束后移除，之后的调用重新执行
+        assertThat(singleFlight.execute("k", () -> "again", 1, TimeUnit.SECONDS)).isEqualTo("again");
+    }
+
+    @Test
+    public void differentKeysAreNotCollapsed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.execute("a", () -> {
+            await(release);
+            return "a";
+        }, 5, TimeUnit.SECONDS));
+
+        assertThat(singleFlight.execute("b", () -> "b", 1, TimeUnit.SECONDS)).isEqualTo("b");
+        release.countDown();
+        assertThat(first.get()).isEqualTo("a");
+        assertThat(count("collapsed")).isZero();
+    }
+
+    @Test
+    public void waiterTimesOutWithoutCancellingLeader() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> singleFlight.execute("k", () -> {
+            started.countDown();
+            await(release);
+            return "v";
+        }, 5, TimeUnit.SECONDS));
+        started.await();
+
+        assertThatThrownBy(() -> singleFlight.execute("k", () -> "other", 10, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        assertThat(count("timeout")).isEqualTo(1);
+
+        release.countDown();
+        assertThat(leader.get()).isEqualTo("v");
+    }
+
+    @Test
+    public void leaderExceptionIsPropagatedToWaiters() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> singleFlight.execute("k", () -> {
+            started.countDown();
+            await(release);
+            throw new IllegalStateException("boom");
+        }, 5, TimeUnit.SECONDS));
+        started.await();
+
+        AtomicReference<Throwable> followerError = new AtomicReference<>();
+        Future<?> follower = executor.submit(() -> {
+            try {
+                singleFlight.execute("k", () -> "other", 5, TimeUnit.SECONDS);
+            } catch (Throwable e) {
+                followerError.set(e);
+            }
+        });
+        waitForCollapsed(1);
+        release.countDown();
+        follower.get();
+
+        assertThatThrownBy(leader::get).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(followerError.get()).isInstanceOf(IllegalStateException.class).hasMessage("boom");
+        assertThat(singleFlight.inFlight()).isZero();
+    }
+
+    @Test
+    public void interruptedWaiterGetsCancellationException() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> singleFlight.execute("k", () -> {
+            started.countDown();
+            await(release);
+            return "v";
+        }, 5, TimeUnit.SECONDS));
+        started.await();
+
+        AtomicReference<Throwable> followerError = new AtomicReference<>();
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread follower = new Thread(() -> {
+            try {
+                singleFlight.execute("k", () -> "other", 5, TimeUnit.SECONDS);
+            } catch (Throwable e) {
+                followerError.set(e);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        follower.start();
+        waitForCollapsed(1);
+        follower.interrupt();
+        follower.join(5000);
+
+        assertThat(followerError.get()).isInstanceOf(CancellationException.class);
+        assertThat(interrupted.get()).isTrue();
+        //等待的线程放弃不影响正在执行的调用
+        release.countDown();
+        assertThat(leader.get()).isEqualTo("v");
+    }
+
+    private double count(String role) {
+        return meterRegistry.get("test.singleflight").tag("role", role).counter().count();
+    }
+
+    private void waitForCollapsed(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count("collapsed") < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        //计数在开始等待前增加，再留一点时间进入等待
+        Thread.sleep(20);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
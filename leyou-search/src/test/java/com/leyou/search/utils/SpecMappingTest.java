@@ -0,0 +1,127 @@
+package com.leyou.search.utils;
+
+import com.leyou.search.pojo.CategorySpec;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpecMappingTest {
+
+    private final CategorySpec phone = new CategorySpec(76L,
+            new LinkedHashSet<>(Arrays.asList("CPU品牌", "机身颜色", "型号")),
+            Collections.singletonMap("屏幕尺寸", "英寸"));
+
+    @Test
+    public void typedShapesValuesByTemplateFlag() {
+        Map<String, Object> specs = new HashMap<>();
+        specs.put("CPU品牌", "骁龙");
+        //字符串参数的值是数字时仍然是keyword
+        specs.put("型号", 9);
+        //数值参数的值是字符串时转换成数字
+        specs.put("屏幕尺寸", "5.5");
+
+        Map<String, Object> source = SpecMapping.TYPED.toSource(specs, phone);
+
+        assertThat(strings(source)).containsEntry("CPU品牌", "骁龙").containsEntry("型号", 9).doesNotContainKey("屏幕尺寸");
+        assertThat(numbers(source)).containsOnlyKeys("屏幕尺寸").containsEntry("屏幕尺寸", 5.5d);
+    }
+
+    @Test
+    public void typedDropsNumericalValuesThatAreNotNumbers() {
+        Map<String, Object> specs = new HashMap<>();
+        specs.put("屏幕尺寸", "未知");
+
+        Map<String, Object> source = SpecMapping.TYPED.toSource(specs, phone);
+
+        assertThat(numbers(source)).isEmpty();
+        assertThat(strings(source)).isEmpty();
+    }
+
+    @Test
+    public void typedKeepsOptionListsAndConvertsNumericalLists() {
+        Map<String, Object> specs = new HashMap<>();
+        specs.put("机身颜色", Arrays.asList("白色", "黑色"));
+        specs.put("屏幕尺寸", Arrays.asList("5.5", 6, "x"));
+
+        Map<String, Object> source = SpecMapping.TYPED.toSource(specs, phone);
+
+        assertThat(strings(source)).containsEntry("机身颜色", Arrays.asList("白色", "黑色"));
+        assertThat(numbers(source)).containsEntry("屏幕尺寸", Arrays.<Number>asList(5.5d, 6));
+    }
+
+    @Test
+    public void typedFallsBackToValueTypeWithoutTemplate() {
+        Map<String, Object> specs = new HashMap<>();
+        specs.put("CPU品牌", "骁龙");
+        specs.put("屏幕尺寸", 5.5d);
+
+        Map<String, Object> source = SpecMapping.TYPED.toSource(specs, null);
+
+        assertThat(strings(source)).containsOnlyKeys("CPU品牌");
+        assertThat(numbers(source)).containsOnlyKeys("屏幕尺寸");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void typedPropertiesComeFromTemplates() {
+        CategorySpec tv = new CategorySpec(77L, Collections.singleton("屏幕尺寸"), Collections.singletonMap("功率", "W"));
+
+        Map<String, Object> properties = SpecMapping.TYPED.properties(Arrays.asList(phone, tv));
+
+        Map<String, Object> keywords = (Map<String, Object>) ((Map<String, Object>) properties.get("specs")).get("properties");
+        Map<String, Object> numbers = (Map<String, Object>) ((Map<String, Object>) properties.get("specNumbers")).get("properties");
+        assertThat(keywords).containsOnlyKeys("CPU品牌", "机身颜色", "型号", "屏幕尺寸");
+        assertThat((Map<String, Object>) keywords.get("CPU品牌")).containsEntry("type", "keyword");
+        //同名参数在不同分类中类型不同，分别放在两个对象下，不会冲突
+        assertThat(numbers).containsOnlyKeys("屏幕尺寸", "功率");
+        assertThat((Map<String, Object>) numbers.get("屏幕尺寸")).containsEntry("type", "double");
+    }
+
+    @Test
+    public void otherModesHaveNoExplicitProperties() {
+        assertThat(SpecMapping.DYNAMIC.properties(Collections.singletonList(phone))).isEmpty();
+        assertThat(SpecMapping.NESTED.properties(Collections.singletonList(phone))).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nestedShapesPairsByTemplateFlag() {
+        Map<String, Object> specs = new LinkedHashMap<>();
+        specs.put("型号", 9);
+        specs.put("屏幕尺寸", "5.5");
+        specs.put("机身颜色", Arrays.asList("白色", null));
+
+        List<Map<String, Object>> pairs = (List<Map<String, Object>>) SpecMapping.NESTED.toSource(specs, phone).get("specPairs");
+
+        assertThat(pairs).hasSize(3);
+        assertThat(pairs.get(0)).containsEntry("k", "型号").containsEntry("v", 9).doesNotContainKey("n");
+        assertThat(pairs.get(1)).containsEntry("k", "屏幕尺寸").containsEntry("n", 5.5d).doesNotContainKey("v");
+        assertThat(pairs.get(2)).containsEntry("k", "机身颜色").containsEntry("v", "白色");
+    }
+
+    @Test
+    public void dynamicKeepsSpecsAsIs() {
+        Map<String, Object> specs = Collections.singletonMap("屏幕尺寸", "5.5");
+
+        assertThat(SpecMapping.DYNAMIC.toSource(specs, phone)).containsEntry("specs", specs);
+    }
+
+    @Test
+    public void ofReadsMetaName() {
+        assertThat(SpecMapping.of(null)).isEqualTo(SpecMapping.DYNAMIC);
+        assertThat(SpecMapping.of(" Typed ")).isEqualTo(SpecMapping.TYPED);
+        assertThat(SpecMapping.NESTED.getName()).isEqualTo("nested");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> strings(Map<String, Object> source) {
+        return (Map<String, Object>) source.get("specs");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> numbers(Map<String, Object> source) {
+        return (Map<String, Object>) source.get("specNumbers");
+    }
+}
@@ -10,6 +10,9 @@ import lombok.NoArgsConstructor;
 public enum ExceptionEnum {
     PRICE_CANNOT_BE_NULL(400,"价格不能为空!"),
     CATEGORY_NOT_FOND(404,"商品分类没查到"),
+    SEARCH_BUSY(503,"搜索繁忙，请稍后重试"),
+    INVALID_SEARCH_CURSOR(400,"无效的翻页游标"),
+    BATCH_SEARCH_TOO_LARGE(400,"批量搜索的条件数超出限制"),
     ;
     private Integer code;
     private String msg;
@@ -12,4 +12,11 @@ public interface BrandApi {
 
     @GetMapping("list")
     List<Brand> queryBrandByIds(@RequestParam("ids") List<Long> ids);
+
+    /**
+     * 查询全部品牌，用于搜索微服务在本地缓存品牌字典
+     * @return
+     */
+    @GetMapping("all")
+    List<Brand> queryAllBrands();
 }
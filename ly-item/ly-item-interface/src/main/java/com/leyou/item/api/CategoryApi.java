@@ -1,5 +1,6 @@
 package com.leyou.item.api;
 
+import com.leyou.item.pojo.Category;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -11,4 +12,11 @@ public interface CategoryApi {
 
     @GetMapping("names")
     List<String> queryNameByIds(@RequestParam("ids") List<Long> ids);
+
+    /**
+     * 查询全部商品分类，用于搜索微服务在本地缓存分类字典
+     * @return
+     */
+    @GetMapping("all")
+    List<Category> queryAllCategories();
 }
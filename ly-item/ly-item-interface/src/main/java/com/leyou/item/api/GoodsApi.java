@@ -2,6 +2,7 @@ package com.leyou.item.api;
 
 import com.leyou.common.pojo.PageResult;
 import com.leyou.item.pojo.Sku;
+import com.leyou.item.pojo.Spu;
 import com.leyou.item.pojo.SpuBo;
 import com.leyou.item.pojo.SpuDetail;
 import org.springframework.web.bind.annotation.*;
@@ -25,6 +26,14 @@ public interface GoodsApi {
             @RequestParam(value = "saleable",defaultValue = "true")Boolean saleable,
             @RequestParam(value = "key",required = false)String key);
 
+    /**
+     * 根据id查询spu
+     * @param id
+     * @return
+     */
+    @GetMapping("/spu/{id}")
+    Spu querySpuById(@PathVariable("id") Long id);
+
     /**
      * 根据spu商品id查询详情
       * @param id
@@ -40,4 +49,12 @@ public interface GoodsApi {
      */
     @GetMapping("sku/list")
     List<Sku> querySkuBySpuId(@RequestParam("id")Long id);
+
+    /**
+     * 批量查询多个spu的sku，带库存
+     * @param ids spu的id，一次最多1000个
+     * @return 所有spu的sku，按spuId区分
+     */
+    @PostMapping("sku/list/ids")
+    List<Sku> querySkuBySpuIds(@RequestBody List<Long> ids);
 }
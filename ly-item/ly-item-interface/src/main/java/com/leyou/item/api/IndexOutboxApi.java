@@ -0,0 +1,35 @@
+package com.leyou.item.api;
+
+import com.leyou.item.pojo.IndexOutbox;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.List;
+
+@RequestMapping("outbox")
+public interface IndexOutboxApi {
+
+    /**
+     * 按写入顺序查询待处理的索引变更事件
+     * @param limit 最多返回条数
+     * @return
+     */
+    @GetMapping("pending")
+    List<IndexOutbox> queryPending(@RequestParam(value = "limit", defaultValue = "200") Integer limit);
+
+    /**
+     * 查询待处理的事件总数
+     * @return
+     */
+    @GetMapping("count")
+    Integer queryPendingCount();
+
+    /**
+     * 确认已处理的事件，确认后删除
+     * @param ids 事件id
+     */
+    @DeleteMapping
+    void ack(@RequestParam("ids") List<Long> ids);
+}
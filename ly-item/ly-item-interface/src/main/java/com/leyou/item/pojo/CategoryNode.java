@@ -0,0 +1,49 @@
+package com.leyou.item.pojo;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分类树中的一个节点，带着所有子节点，创建后不可修改
+ */
+public final class CategoryNode {
+    private final Long id;
+    private final String name;
+    private final Long parentId;
+    private final Boolean isParent;
+    private final Integer sort;
+    private final List<CategoryNode> children; //子分类，没有时为空列表
+
+    public CategoryNode(Category category, List<CategoryNode> children) {
+        this.id = category.getId();
+        this.name = category.getName();
+        this.parentId = category.getParentId();
+        this.isParent = category.getIsParent();
+        this.sort = category.getSort();
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public Boolean getIsParent() {
+        return isParent;
+    }
+
+    public Integer getSort() {
+        return sort;
+    }
+
+    public List<CategoryNode> getChildren() {
+        return children;
+    }
+}
@@ -0,0 +1,22 @@
+package com.leyou.item.pojo;
+
+import lombok.Data;
+
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * 索引变更事件，和商品修改在同一个事务中写入，由搜索微服务拉取后更新索引
+ */
+@Data
+@Table(name = "tb_index_outbox")
+public class IndexOutbox {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    private Long spuId; //发生变化的spu
+    private Date createTime; //变化时间
+}
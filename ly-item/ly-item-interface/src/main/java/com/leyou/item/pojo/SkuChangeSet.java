@@ -0,0 +1,18 @@
+package com.leyou.item.pojo;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 修改商品时sku的变化，只包含实际写入了的sku
+ */
+@Data
+public class SkuChangeSet {
+    private Long spuId;
+    private List<Long> added = new ArrayList<>(); //新增的sku
+    private List<Long> updated = new ArrayList<>(); //sku表中有列变化的sku，包括重新启用的
+    private List<Long> stockChanged = new ArrayList<>(); //库存变化的sku
+    private List<Long> removed = new ArrayList<>(); //逻辑删除的sku
+}
@@ -55,4 +55,9 @@ public class BrandController {
         }
         return ResponseEntity.ok(list);
     }
+
+    @GetMapping("all")
+    public ResponseEntity<List<Brand>> queryAllBrands(){
+        return ResponseEntity.ok(this.brandService.queryAllBrands());
+    }
 }
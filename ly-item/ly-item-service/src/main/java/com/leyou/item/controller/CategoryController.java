@@ -1,8 +1,12 @@
 package com.leyou.item.controller;
 
 import com.leyou.item.pojo.Category;
+import com.leyou.item.pojo.CategoryNode;
 import com.leyou.item.service.CategoryService;
+import com.leyou.item.service.CategoryTree;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -21,6 +25,35 @@ public class CategoryController {
         return ResponseEntity.ok(categoryService.queryCategoryListByPid(pid));
     }
 
+    /**
+     * 查询整棵分类树，带ETag，分类没有变化时返回304
+     * @param ifNoneMatch 客户端缓存的ETag
+     * @return 顶级分类以及它们的所有子分类
+     */
+    @GetMapping("tree")
+    public ResponseEntity<List<CategoryNode>> queryTree(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+        CategoryTree tree = this.categoryService.getTree();
+        if (matches(ifNoneMatch, tree.getEtag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tree.getEtag()).build();
+        }
+        return ResponseEntity.ok().eTag(tree.getEtag()).cacheControl(CacheControl.noCache()).body(tree.getRoots());
+    }
+
+    /**
+     * 查询从顶级分类到指定分类的路径
+     * @param id 分类id
+     * @return 一级、二级、三级分类
+     */
+    @GetMapping("path/{id}")
+    public ResponseEntity<List<Category>> queryPathById(@PathVariable("id") Long id){
+        List<Category> path = this.categoryService.queryPathById(id);
+        if (path.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(path);
+    }
+
     /**
      * 通过品牌id查询商品分类
      * @param bid
@@ -47,4 +80,27 @@ public class CategoryController {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         return ResponseEntity.ok(list);
     }
+
+    /**
+     * 查询全部商品分类
+     * @return
+     */
+    @GetMapping("all")
+    public ResponseEntity<List<Category>> queryAllCategories(){
+        return ResponseEntity.ok(this.categoryService.queryAllCategories());
+    }
+
+//    If-None-Match中有一个和当前的ETag相同，弱校验
+    private boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
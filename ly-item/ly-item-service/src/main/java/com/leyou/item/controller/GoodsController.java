@@ -42,6 +42,15 @@ public class GoodsController {
         return ResponseEntity.ok(result);
     }
 
+    @GetMapping("/spu/{id}")
+    public ResponseEntity<Spu> querySpuById(@PathVariable("id") Long id) {
+        Spu spu = this.goodsService.querySpuById(id);
+        if (spu == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(spu);
+    }
+
     @GetMapping("/spu/detail/{id}")
     public ResponseEntity<SpuDetail> querySpuDetailById(@PathVariable("id") Long id) {
         SpuDetail detail = this.goodsService.querySpuDetailById(id);
@@ -59,6 +68,19 @@ public class GoodsController {
         return ResponseEntity.ok(skus);
     }
 
+    /**
+     * 批量查询多个spu的sku，带库存，供搜索服务构建索引时使用
+     * @param ids spu的id，一次最多1000个
+     * @return 所有spu的sku，按spuId区分，都没有sku时返回空列表
+     */
+    @PostMapping("sku/list/ids")
+    public ResponseEntity<List<Sku>> querySkuBySpuIds(@RequestBody List<Long> ids) {
+        if (ids == null || ids.isEmpty() || ids.size() > 1000) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        return ResponseEntity.ok(this.goodsService.querySkuBySpuIds(ids));
+    }
+
     @PostMapping("/goods")
     public ResponseEntity<Void> saveGoods(@RequestBody Spu spu){
         try {
@@ -71,15 +93,14 @@ public class GoodsController {
     }
 
     /**
-     * 新增商品
+     * 修改商品
      * @param spu
-     * @return
+     * @return sku的新增、修改、库存变化和逻辑删除
      */
     @PutMapping
-    public ResponseEntity<Void> updateGoods(@RequestBody SpuBo spu) {
+    public ResponseEntity<SkuChangeSet> updateGoods(@RequestBody SpuBo spu) {
         try {
-            this.goodsService.update(spu);
-            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            return ResponseEntity.ok(this.goodsService.update(spu));
         } catch (Exception e) {
             e.printStackTrace();
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
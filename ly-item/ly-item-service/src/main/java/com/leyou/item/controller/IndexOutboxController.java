@@ -0,0 +1,43 @@
+package com.leyou.item.controller;
+
+import com.leyou.item.pojo.IndexOutbox;
+import com.leyou.item.service.IndexOutboxService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("outbox")
+public class IndexOutboxController {
+
+    @Autowired
+    private IndexOutboxService indexOutboxService;
+
+    /**
+     * 查询待处理的索引变更事件，没有时返回空集合
+     * @param limit
+     * @return
+     */
+    @GetMapping("pending")
+    public ResponseEntity<List<IndexOutbox>> queryPending(@RequestParam(value = "limit", defaultValue = "200") Integer limit) {
+        return ResponseEntity.ok(this.indexOutboxService.queryPending(limit));
+    }
+
+    /**
+     * 查询待处理的索引变更事件总数
+     * @return
+     */
+    @GetMapping("count")
+    public ResponseEntity<Integer> queryPendingCount() {
+        return ResponseEntity.ok(this.indexOutboxService.queryPendingCount());
+    }
+
+    @DeleteMapping
+    public ResponseEntity<Void> ack(@RequestParam("ids") List<Long> ids) {
+        this.indexOutboxService.ack(ids);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+}
@@ -2,6 +2,7 @@ package com.leyou.item.mapper;
 
 import com.leyou.item.pojo.Brand;
 import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import tk.mybatis.mapper.additional.idlist.SelectByIdListMapper;
 import tk.mybatis.mapper.common.Mapper;
@@ -10,13 +11,14 @@ import java.util.List;
 
 public interface BrandMapper extends Mapper<Brand>, SelectByIdListMapper<Brand,Long> {
     /**
-     * 新增商品分类和品牌中间表数据
-     * @param cid 商品分类id
+     * 新增商品分类和品牌中间表数据，所有分类一条insert语句
      * @param bid 品牌id
+     * @param cids 商品分类id，不能为空
      * @return
      */
-    @Insert("INSERT INTO tb_category_brand (category_id, brand_id) VALUES (#{cid},#{bid})")
-    void insertCategoryBrand(Long cid, Long bid);
+    @Insert({"<script>", "INSERT INTO tb_category_brand (category_id, brand_id) VALUES ",
+            "<foreach collection='cids' item='cid' separator=','>(#{cid},#{bid})</foreach>", "</script>"})
+    void insertCategoryBrands(@Param("bid") Long bid, @Param("cids") List<Long> cids);
 
     @Select("SELECT b.* FROM tb_brand b LEFT JOIN tb_category_brand cb ON b.id = cb.brand_id WHERE cb.category_id = #{cid}")
     List<Brand> queryByCategoryId(Long cid);
@@ -0,0 +1,8 @@
+package com.leyou.item.mapper;
+
+import com.leyou.item.pojo.IndexOutbox;
+import tk.mybatis.mapper.additional.idlist.DeleteByIdListMapper;
+import tk.mybatis.mapper.common.Mapper;
+
+public interface IndexOutboxMapper extends Mapper<IndexOutbox>, DeleteByIdListMapper<IndexOutbox,Long> {
+}
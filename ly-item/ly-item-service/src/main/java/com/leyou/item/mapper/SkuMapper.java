@@ -1,7 +1,47 @@
 package com.leyou.item.mapper;
 
 import com.leyou.item.pojo.Sku;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 import tk.mybatis.mapper.common.Mapper;
+import tk.mybatis.mapper.common.special.InsertListMapper;
 
-public interface SkuMapper extends Mapper<Sku> {
+import java.util.List;
+
+/**
+ * InsertListMapper批量插入时不写id列，自增的id会回填到每个sku中
+ */
+public interface SkuMapper extends Mapper<Sku>, InsertListMapper<Sku> {
+
+    /**
+     * sku关联库存表，列名和属性名不同的要起别名
+     */
+    String SELECT_WITH_STOCK = "SELECT s.id, s.spu_id AS spuId, s.title, s.images, s.price, s.own_spec AS ownSpec, s.indexes, " +
+            "s.enable, s.create_time AS createTime, s.last_update_time AS lastUpdateTime, t.stock " +
+            "FROM tb_sku s LEFT JOIN tb_stock t ON s.id = t.sku_id ";
+
+    /**
+     * 查询spu下有效的sku，同时带出库存
+     * @param spuId
+     * @return
+     */
+    @Select(SELECT_WITH_STOCK + "WHERE s.spu_id = #{spuId} AND s.enable = 1")
+    List<Sku> selectWithStockBySpuId(@Param("spuId") Long spuId);
+
+    /**
+     * 查询spu下的所有sku，包括已经逻辑删除的，同时带出库存。修改商品时和提交的sku对比
+     * @param spuId
+     * @return
+     */
+    @Select(SELECT_WITH_STOCK + "WHERE s.spu_id = #{spuId}")
+    List<Sku> selectAllWithStockBySpuId(@Param("spuId") Long spuId);
+
+    /**
+     * 批量查询多个spu下有效的sku，同时带出库存
+     * @param spuIds 不能为空
+     * @return
+     */
+    @Select({"<script>", SELECT_WITH_STOCK + "WHERE s.enable = 1 AND s.spu_id IN " +
+            "<foreach collection='spuIds' item='id' open='(' separator=',' close=')'>#{id}</foreach>", "</script>"})
+    List<Sku> selectWithStockBySpuIds(@Param("spuIds") List<Long> spuIds);
 }
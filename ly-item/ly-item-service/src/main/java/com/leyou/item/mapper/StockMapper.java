@@ -1,7 +1,11 @@
 package com.leyou.item.mapper;
 
 import com.leyou.item.pojo.Stock;
+import tk.mybatis.mapper.additional.insert.InsertListMapper;
 import tk.mybatis.mapper.common.Mapper;
 
-public interface StockMapper extends Mapper<Stock> {
+/**
+ * 库存的主键是skuId，批量插入时需要连同主键一起写入
+ */
+public interface StockMapper extends Mapper<Stock>, InsertListMapper<Stock> {
 }
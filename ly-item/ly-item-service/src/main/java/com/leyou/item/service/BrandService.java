@@ -8,6 +8,8 @@ import com.leyou.item.pojo.Brand;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.CollectionUtils;
 import tk.mybatis.mapper.entity.Example;
 
 import java.util.List;
@@ -38,12 +40,13 @@ public class BrandService {
         return new PageResult<>(pageInfo.getTotal(),pageInfo);
     }
 
+    @Transactional
     public void saveBrand(Brand brand, List<Long> cids) {
 //        新增品牌信息
         this.brandMapper.insertSelective(brand);
-//        新增品牌和分类中间表
-        for (Long cid:cids){
-            this.brandMapper.insertCategoryBrand(cid,brand.getId());
+//        新增品牌和分类中间表，一条语句插入所有分类
+        if (!CollectionUtils.isEmpty(cids)) {
+            this.brandMapper.insertCategoryBrands(brand.getId(), cids);
         }
     }
 
@@ -54,4 +57,8 @@ public class BrandService {
     public List<Brand> queryBrandByIds(List<Long> ids) {
         return this.brandMapper.selectByIdList(ids);
     }
+
+    public List<Brand> queryAllBrands() {
+        return this.brandMapper.selectAll();
+    }
 }
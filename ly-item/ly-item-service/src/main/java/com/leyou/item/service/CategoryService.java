@@ -4,24 +4,54 @@ import com.leyou.common.enums.ExceptionEnum;
 import com.leyou.common.exception.LyException;
 import com.leyou.item.mapper.CategoryMapper;
 import com.leyou.item.pojo.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
 import java.util.List;
-import java.util.stream.Collectors;
 
+/**
+ * 分类查询都从内存中的分类树返回，分类树定期从数据库重新加载，内容变化时整体替换
+ */
 @Service
 public class CategoryService {
 
     @Autowired
     private CategoryMapper categoryMapper;
 
+    private static final Logger logger = LoggerFactory.getLogger(CategoryService.class);
+
+    private volatile CategoryTree tree;
+
+    @PostConstruct
+    public void init() {
+        reload();
+    }
+
+    /**
+     * 从数据库重新加载分类树，修改分类后也可以直接调用
+     */
+    @Scheduled(fixedDelayString = "${ly.item.category-refresh:60000}", initialDelayString = "${ly.item.category-refresh:60000}")
+    public void reload() {
+        CategoryTree loaded = new CategoryTree(this.categoryMapper.selectAll());
+        CategoryTree current = this.tree;
+        if (current != null && current.getEtag().equals(loaded.getEtag())) {
+            return;
+        }
+        this.tree = loaded;
+        logger.info("分类树已更新，共{}个分类", loaded.size());
+    }
+
+    public CategoryTree getTree() {
+        return this.tree;
+    }
+
     public List<Category> queryCategoryListByPid(Long pid) {
-//      mapper会把对象中的非空属性作为查询条件
-        Category category = new Category();
-        category.setParentId(pid);
-        List<Category> list = categoryMapper.select(category);
+        List<Category> list = this.tree.getChildren(pid);
         if (CollectionUtils.isEmpty(list)){
             throw new LyException(ExceptionEnum.CATEGORY_NOT_FOND);
         }
@@ -32,7 +62,22 @@ public class CategoryService {
         return this.categoryMapper.queryByBrandId(bid);
     }
 
+    /**
+     * @return 按ids的顺序，不存在的分类跳过
+     */
     public List<String> queryNameByIds(List<Long> ids) {
-        return this.categoryMapper.selectByIdList(ids).stream().map(Category::getName).collect(Collectors.toList());
+        return this.tree.getNames(ids);
+    }
+
+    /**
+     * 从顶级分类到指定分类的路径
+     * @return 分类不存在时返回空列表
+     */
+    public List<Category> queryPathById(Long id) {
+        return this.tree.getPath(id);
+    }
+
+    public List<Category> queryAllCategories() {
+        return this.tree.getAll();
     }
 }
@@ -0,0 +1,139 @@
+package com.leyou.item.service;
+
+import com.leyou.common.utils.JsonUtils;
+import com.leyou.item.pojo.Category;
+import com.leyou.item.pojo.CategoryNode;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 整张分类表在内存中的快照，创建后不可修改。分类变化时整体重建后替换，读取时不需要加锁
+ * <p>Category是可修改的实体，快照里保存的是复制出来的对象，返回给调用方的也是复制出来的对象，
+ * 调用方修改返回值不会影响快照
+ */
+public final class CategoryTree {
+
+    private final List<Category> all;
+    private final Map<Long, Category> byId;
+    private final Map<Long, List<Category>> children;
+    private final List<CategoryNode> roots;
+    private final String etag;
+
+    /**
+     * @param categories 整张分类表，同一父分类下的子分类保持这里的顺序
+     */
+    public CategoryTree(List<Category> categories) {
+        List<Category> all = new ArrayList<>(categories.size());
+        for (Category category : categories) {
+            all.add(copy(category));
+        }
+        Map<Long, Category> byId = new HashMap<>();
+        Map<Long, List<Category>> children = new HashMap<>();
+        for (Category category : all) {
+            byId.put(category.getId(), category);
+            children.computeIfAbsent(category.getParentId(), k -> new ArrayList<>()).add(category);
+        }
+        children.replaceAll((pid, list) -> Collections.unmodifiableList(list));
+        this.all = Collections.unmodifiableList(all);
+        this.byId = byId;
+        this.children = children;
+        //父分类不存在的都作为顶级分类
+        List<CategoryNode> roots = new ArrayList<>();
+        for (Category category : all) {
+            if (!byId.containsKey(category.getParentId())) {
+                roots.add(buildNode(category, new HashSet<>()));
+            }
+        }
+        this.roots = Collections.unmodifiableList(roots);
+        this.etag = "\"" + DigestUtils.md5DigestAsHex(JsonUtils.toString(all).getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    private CategoryNode buildNode(Category category, Set<Long> ancestors) {
+        List<CategoryNode> nodes = new ArrayList<>();
+        //数据有环时不再往下展开
+        if (ancestors.add(category.getId())) {
+            for (Category child : children.getOrDefault(category.getId(), Collections.emptyList())) {
+                nodes.add(buildNode(child, ancestors));
+            }
+            ancestors.remove(category.getId());
+        }
+        return new CategoryNode(category, nodes);
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+    public List<Category> getAll() {
+        return copyAll(all);
+    }
+
+    /**
+     * @return 没有子分类时返回空列表
+     */
+    public List<Category> getChildren(Long pid) {
+        return copyAll(children.getOrDefault(pid, Collections.emptyList()));
+    }
+
+    /**
+     * 从顶级分类到指定分类的路径
+     * @return 分类不存在时返回空列表
+     */
+    public List<Category> getPath(Long id) {
+        LinkedList<Category> path = new LinkedList<>();
+        Category category = byId.get(id);
+        while (category != null && path.size() < byId.size()) {
+            path.addFirst(copy(category));
+            category = byId.get(category.getParentId());
+        }
+        return path;
+    }
+
+    /**
+     * @return 按ids的顺序，不存在的分类跳过
+     */
+    public List<String> getNames(List<Long> ids) {
+        List<String> names = new ArrayList<>();
+        for (Long id : ids) {
+            Category category = byId.get(id);
+            if (category != null) {
+                names.add(category.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 整棵树，顶级分类在第一层
+     */
+    public List<CategoryNode> getRoots() {
+        return roots;
+    }
+
+    /**
+     * 分类表内容的摘要，内容不变时不变，用作HTTP的ETag
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    private static List<Category> copyAll(List<Category> categories) {
+        List<Category> copies = new ArrayList<>(categories.size());
+        for (Category category : categories) {
+            copies.add(copy(category));
+        }
+        return copies;
+    }
+
+    private static Category copy(Category category) {
+        Category copy = new Category();
+        copy.setId(category.getId());
+        copy.setName(category.getName());
+        copy.setParentId(category.getParentId());
+        copy.setIsParent(category.getIsParent());
+        copy.setSort(category.getSort());
+        return copy;
+    }
+}
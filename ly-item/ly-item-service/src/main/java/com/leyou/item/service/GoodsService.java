@@ -6,16 +6,12 @@ import com.leyou.common.pojo.PageResult;
 import com.leyou.item.mapper.*;
 import com.leyou.item.pojo.*;
 import org.apache.commons.lang.StringUtils;
-import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.CollectionUtils;
 import tk.mybatis.mapper.entity.Example;
 
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 @Service
@@ -39,6 +35,14 @@ public class GoodsService {
     @Autowired
     private StockMapper stockMapper;
 
+    @Autowired
+    private IndexOutboxService indexOutboxService;
+
+    /**
+     * 批量插入时每条insert语句最多的行数，避免语句超过max_allowed_packet
+     */
+    private static final int INSERT_BATCH_SIZE = 500;
+
     public PageResult<SpuBo> querySpuByPageAndSort(Integer page, Integer rows,Boolean saleable , String key) {
 //        1.分页查询spu
 //        分页,最多允许查询100条
@@ -55,24 +59,53 @@ public class GoodsService {
             criteria.andLike("title","%"+key+"%");
         }
         Page<Spu> pageInfo = (Page<Spu>) this.spuMapper.selectByExample(example);
+        List<Spu> spus = pageInfo.getResult();
+
+//        2.分类从内存中的分类树获取，这一页用到的品牌查询一次，不再每个spu单独查询
+        Map<Long, String> brandNames = queryBrandNames(spus.stream().map(Spu::getBrandId).collect(Collectors.toSet()));
 
-        List<SpuBo> list = pageInfo.getResult().stream().map(spu -> {
-//            2.把spu变为spuBo
-            SpuBo spuBo = new SpuBo();
-//            属性拷贝
-            BeanUtils.copyProperties(spu,spuBo);
-//            3.查询spu的商品分类名称,要查三级分类
-            List<String> names = categoryService.queryNameByIds(Arrays.asList(spu.getCid3()));
-//            将分类名称拼接后存入
-            spuBo.setCname(StringUtils.join(names,"/"));
-//            4.查询spu的品牌名称
-            Brand brand=this.brandMapper.selectByPrimaryKey(spu.getBrandId());
-            spuBo.setBname(brand.getName());
+//        3.把spu变为spuBo，填上分类和品牌名称
+        List<SpuBo> list = spus.stream().map(spu -> {
+            SpuBo spuBo = toSpuBo(spu);
+//            分类名称是一级到三级的完整路径
+            spuBo.setCname(this.categoryService.queryPathById(spu.getCid3()).stream()
+                    .map(Category::getName).collect(Collectors.joining("/")));
+            spuBo.setBname(brandNames.getOrDefault(spu.getBrandId(), ""));
             return spuBo;
         }).collect(Collectors.toList());
         return new PageResult<>(pageInfo.getTotal(),list);
     }
 
+//    品牌id和名称，不存在的品牌没有对应的项，列表中显示为空字符串；名称为空的品牌也显示为空字符串
+    private Map<Long, String> queryBrandNames(Set<Long> ids) {
+        ids.remove(null);
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Long, String> names = new HashMap<>();
+        for (Brand brand : this.brandMapper.selectByIdList(new ArrayList<>(ids))) {
+            names.put(brand.getId(), StringUtils.defaultString(brand.getName()));
+        }
+        return names;
+    }
+
+//    逐个字段复制，列表页每行都要转换，不用反射
+    private SpuBo toSpuBo(Spu spu) {
+        SpuBo spuBo = new SpuBo();
+        spuBo.setId(spu.getId());
+        spuBo.setBrandId(spu.getBrandId());
+        spuBo.setCid1(spu.getCid1());
+        spuBo.setCid2(spu.getCid2());
+        spuBo.setCid3(spu.getCid3());
+        spuBo.setTitle(spu.getTitle());
+        spuBo.setSubTitle(spu.getSubTitle());
+        spuBo.setSaleable(spu.getSaleable());
+        spuBo.setValid(spu.getValid());
+        spuBo.setCreateTime(spu.getCreateTime());
+        spuBo.setLastUpdateTime(spu.getLastUpdateTime());
+        return spuBo;
+    }
+
     @Transactional
     public void save(Spu spu) {
 //        保存spu
@@ -87,26 +120,42 @@ public class GoodsService {
 
 //        保存sku和库存信息
         saveSkuAndStock(spu.getSkus(),spu.getId());
+
+//        记录索引变更事件
+        this.indexOutboxService.record(spu.getId());
     }
 
     private void saveSkuAndStock(List<Sku> skus, Long spuId) {
-        for (Sku sku : skus) {
-            if (!sku.getEnable()) {
-                continue;
-            }
-            // 保存sku
+        List<Sku> enabled = skus.stream().filter(Sku::getEnable).collect(Collectors.toList());
+        if (enabled.isEmpty()) {
+            return;
+        }
+        Date now = new Date();
+        for (Sku sku : enabled) {
             sku.setSpuId(spuId);
             // 默认不参与任何促销
-            sku.setCreateTime(new Date());
-            sku.setLastUpdateTime(sku.getCreateTime());
-            this.skuMapper.insert(sku);
-
-            // 保存库存信息
+            sku.setCreateTime(now);
+            sku.setLastUpdateTime(now);
+        }
+        // 多行insert批量保存sku，自增id回填到sku中
+        for (int from = 0; from < enabled.size(); from += INSERT_BATCH_SIZE) {
+            this.skuMapper.insertList(enabled.subList(from, Math.min(from + INSERT_BATCH_SIZE, enabled.size())));
+        }
+        // 保存库存信息
+        List<Stock> stocks = new ArrayList<>(enabled.size());
+        for (Sku sku : enabled) {
             Stock stock = new Stock();
             stock.setSkuId(sku.getId());
             stock.setStock(sku.getStock());
-            this.stockMapper.insert(stock);
+            stocks.add(stock);
         }
+        for (int from = 0; from < stocks.size(); from += INSERT_BATCH_SIZE) {
+            this.stockMapper.insertList(stocks.subList(from, Math.min(from + INSERT_BATCH_SIZE, stocks.size())));
+        }
+    }
+
+    public Spu querySpuById(Long id) {
+        return this.spuMapper.selectByPrimaryKey(id);
     }
 
     public SpuDetail querySpuDetailById(Long id) {
@@ -114,39 +163,36 @@ public class GoodsService {
     }
 
     public List<Sku> querySkuBySpuid(Long spuId) {
-//        查询sku
-        Sku record = new Sku();
-        record.setSpuId(spuId);
-        List<Sku> skus = this.skuMapper.select(record);
-        for (Sku sku : skus) {
-            // 同时查询出库存
-            sku.setStock(this.stockMapper.selectByPrimaryKey(sku.getId()).getStock());
-        }
-        return skus;
+//        查询sku，关联库存表同时查出库存
+        return this.skuMapper.selectWithStockBySpuId(spuId);
     }
 
-    @Transactional
-    public void update(SpuBo spu) {
-//        查询以前sku
-        List<Sku> skus = this.querySkuBySpuid(spu.getId());
-//        如果以前存在则删除
-        if (!CollectionUtils.isEmpty(skus)){
-            List<Long> ids = skus.stream().map(s -> s.getId()).collect(Collectors.toList());
-//            删除以前库存
-            Example example = new Example(Stock.class);
-            example.createCriteria().andIn("skuId",ids);
-            this.stockMapper.deleteByExample(example);
-
-//            删除以前sku
-            Sku record = new Sku();
-            record.setSpuId(spu.getId());
-            this.skuMapper.delete(record);
+    /**
+     * 批量查询多个spu的sku，带库存
+     * @param spuIds spu的id，可以重复
+     * @return 所有spu的sku，按spuId区分
+     */
+    public List<Sku> querySkuBySpuIds(List<Long> spuIds) {
+        List<Long> ids = spuIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
         }
-//        新增sku和库存
-        saveSkuAndStock(spu.getSkus(),spu.getId());
+        return this.skuMapper.selectWithStockBySpuIds(ids);
+    }
+
+    /**
+     * 修改商品，sku和原来的对比后只写入变化的部分
+     * @param spu
+     * @return sku的变化
+     */
+    @Transactional
+    public SkuChangeSet update(SpuBo spu) {
+        Date now = new Date();
+//        对比新旧sku，新增、修改、逻辑删除
+        SkuChangeSet changes = updateSkus(spu.getId(), spu.getSkus(), now);
 
 //        更新spu
-        spu.setLastUpdateTime(new Date());
+        spu.setLastUpdateTime(now);
         spu.setCreateTime(null);
         spu.setValid(null);
         spu.setSaleable(null);
@@ -154,5 +200,115 @@ public class GoodsService {
 
 //        更新spu详情
         this.spuDetailMapper.updateByPrimaryKeySelective(spu.getSpuDetail());
+
+//        记录索引变更事件
+        this.indexOutboxService.record(spu.getId());
+        return changes;
+    }
+
+    /**
+     * 提交的sku先按id、再按特殊规格的下标indexes和原有的sku对应：
+     * 对应上的只更新变化的列，逻辑删除过的重新启用；对应不上的新增；原有的sku没有被对应上的逻辑删除。
+     * sku的id保持不变，按sku id缓存的数据不会全部失效
+     */
+    private SkuChangeSet updateSkus(Long spuId, List<Sku> skus, Date now) {
+        List<Sku> existing = this.skuMapper.selectAllWithStockBySpuId(spuId);
+        Map<Long, Sku> byId = new HashMap<>();
+        Map<String, Sku> byIndexes = new HashMap<>();
+        for (Sku old : existing) {
+            byId.put(old.getId(), old);
+            if (old.getIndexes() != null) {
+                //同一组下标有多条时优先对应有效的
+                byIndexes.merge(old.getIndexes(), old, (a, b) -> Boolean.TRUE.equals(a.getEnable()) ? a : b);
+            }
+        }
+
+        SkuChangeSet changes = new SkuChangeSet();
+        changes.setSpuId(spuId);
+        Set<Long> matched = new HashSet<>();
+        List<Sku> added = new ArrayList<>();
+        for (Sku sku : skus == null ? Collections.<Sku>emptyList() : skus) {
+            if (!Boolean.TRUE.equals(sku.getEnable())) {
+                continue;
+            }
+            Sku old = sku.getId() == null ? null : byId.get(sku.getId());
+            if (old == null && sku.getIndexes() != null) {
+                old = byIndexes.get(sku.getIndexes());
+            }
+            if (old == null || !matched.add(old.getId())) {
+                sku.setId(null);
+                added.add(sku);
+                continue;
+            }
+            Sku diff = diffSku(old, sku);
+            if (diff != null) {
+                diff.setLastUpdateTime(now);
+                this.skuMapper.updateByPrimaryKeySelective(diff);
+                changes.getUpdated().add(old.getId());
+            }
+            if (sku.getStock() != null && !sku.getStock().equals(old.getStock())) {
+                Stock stock = new Stock();
+                stock.setSkuId(old.getId());
+                stock.setStock(sku.getStock());
+                if (this.stockMapper.updateByPrimaryKeySelective(stock) == 0) {
+                    this.stockMapper.insertSelective(stock);
+                }
+                changes.getStockChanged().add(old.getId());
+            }
+        }
+
+//        新增的sku和库存
+        saveSkuAndStock(added, spuId);
+        added.forEach(sku -> changes.getAdded().add(sku.getId()));
+
+//        没有对应上的有效sku逻辑删除
+        List<Long> removed = existing.stream()
+                .filter(old -> Boolean.TRUE.equals(old.getEnable()) && !matched.contains(old.getId()))
+                .map(Sku::getId).collect(Collectors.toList());
+        if (!removed.isEmpty()) {
+            Sku record = new Sku();
+            record.setEnable(false);
+            record.setLastUpdateTime(now);
+            Example example = new Example(Sku.class);
+            example.createCriteria().andIn("id", removed);
+            this.skuMapper.updateByExampleSelective(record, example);
+            changes.getRemoved().addAll(removed);
+        }
+        return changes;
+    }
+
+    /**
+     * 只包含变化的列，提交的值为空的列视为不修改
+     * @return 没有变化时返回null
+     */
+    private Sku diffSku(Sku old, Sku sku) {
+        Sku diff = new Sku();
+        diff.setId(old.getId());
+        boolean changed = false;
+        if (sku.getTitle() != null && !sku.getTitle().equals(old.getTitle())) {
+            diff.setTitle(sku.getTitle());
+            changed = true;
+        }
+        if (sku.getImages() != null && !sku.getImages().equals(old.getImages())) {
+            diff.setImages(sku.getImages());
+            changed = true;
+        }
+        if (sku.getPrice() != null && !sku.getPrice().equals(old.getPrice())) {
+            diff.setPrice(sku.getPrice());
+            changed = true;
+        }
+        if (sku.getOwnSpec() != null && !sku.getOwnSpec().equals(old.getOwnSpec())) {
+            diff.setOwnSpec(sku.getOwnSpec());
+            changed = true;
+        }
+        if (sku.getIndexes() != null && !sku.getIndexes().equals(old.getIndexes())) {
+            diff.setIndexes(sku.getIndexes());
+            changed = true;
+        }
+        if (!Boolean.TRUE.equals(old.getEnable())) {
+            diff.setEnable(true);
+            changed = true;
+        }
+        return changed ? diff : null;
     }
 }
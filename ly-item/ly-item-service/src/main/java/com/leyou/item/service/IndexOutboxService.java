@@ -0,0 +1,49 @@
+package com.leyou.item.service;
+
+import com.github.pagehelper.PageHelper;
+import com.leyou.item.mapper.IndexOutboxMapper;
+import com.leyou.item.pojo.IndexOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import tk.mybatis.mapper.entity.Example;
+
+import java.util.Date;
+import java.util.List;
+
+@Service
+public class IndexOutboxService {
+
+    @Autowired
+    private IndexOutboxMapper indexOutboxMapper;
+
+    /**
+     * 记录spu的变化，需要在修改商品的事务中调用
+     * @param spuId
+     */
+    public void record(Long spuId) {
+        IndexOutbox outbox = new IndexOutbox();
+        outbox.setSpuId(spuId);
+        outbox.setCreateTime(new Date());
+        this.indexOutboxMapper.insert(outbox);
+    }
+
+    public List<IndexOutbox> queryPending(Integer limit) {
+//        按id顺序，最多1000条
+        PageHelper.startPage(1, Math.min(limit, 1000), false);
+        Example example = new Example(IndexOutbox.class);
+        example.setOrderByClause("id ASC");
+        return this.indexOutboxMapper.selectByExample(example);
+    }
+
+    public Integer queryPendingCount() {
+        return this.indexOutboxMapper.selectCount(new IndexOutbox());
+    }
+
+    public void ack(List<Long> ids) {
+        if (CollectionUtils.isEmpty(ids)) {
+            return;
+        }
+        this.indexOutboxMapper.deleteByIdList(ids);
+    }
+}
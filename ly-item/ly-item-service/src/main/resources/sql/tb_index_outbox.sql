@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS `tb_index_outbox` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `spu_id` bigint(20) NOT NULL COMMENT '发生变化的spu id',
+  `create_time` datetime NOT NULL COMMENT '变化时间',
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='索引变更事件表';
@@ -0,0 +1,94 @@
+package com.leyou.item.service;
+
+import com.leyou.item.pojo.Category;
+import com.leyou.item.pojo.CategoryNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CategoryTreeTest {
+
+    @Test
+    public void pathGoesFromRootToCategory() {
+        CategoryTree tree = new CategoryTree(phones());
+
+        assertThat(tree.getPath(76L)).extracting(Category::getName).containsExactly("手机", "手机通讯", "手机");
+        assertThat(tree.getPath(1L)).extracting(Category::getName).containsExactly("手机");
+        assertThat(tree.getPath(999L)).isEmpty();
+    }
+
+    @Test
+    public void pathStopsOnCycle() {
+        //数据有环时路径最多包含所有分类，不会死循环
+        CategoryTree tree = new CategoryTree(Arrays.asList(category(1L, "a", 2L), category(2L, "b", 1L)));
+
+        assertThat(tree.getPath(1L)).extracting(Category::getId).containsExactly(2L, 1L);
+        assertThat(tree.getRoots()).isEmpty();
+    }
+
+    @Test
+    public void childrenKeepLoadOrderAndRootsAreBuilt() {
+        CategoryTree tree = new CategoryTree(phones());
+
+        assertThat(tree.getChildren(2L)).extracting(Category::getId).containsExactly(76L, 77L);
+        assertThat(tree.getChildren(76L)).isEmpty();
+        List<CategoryNode> roots = tree.getRoots();
+        assertThat(roots).extracting(CategoryNode::getId).containsExactly(1L);
+        assertThat(roots.get(0).getChildren().get(0).getChildren()).extracting(CategoryNode::getName).containsExactly("手机", "手机配件");
+        assertThat(tree.getNames(Arrays.asList(77L, 999L, 1L))).containsExactly("手机配件", "手机");
+    }
+
+    @Test
+    public void etagDependsOnlyOnContent() {
+        CategoryTree first = new CategoryTree(phones());
+        CategoryTree same = new CategoryTree(phones());
+        List<Category> renamed = phones();
+        renamed.get(3).setName("配件");
+        CategoryTree changed = new CategoryTree(renamed);
+
+        assertThat(first.getEtag()).isEqualTo(same.getEtag()).startsWith("\"").endsWith("\"");
+        assertThat(changed.getEtag()).isNotEqualTo(first.getEtag());
+        assertThat(new CategoryTree(Collections.emptyList()).getEtag()).isNotEqualTo(first.getEtag());
+    }
+
+    @Test
+    public void changingLoadedOrReturnedCategoriesDoesNotChangeSnapshot() {
+        List<Category> loaded = phones();
+        CategoryTree tree = new CategoryTree(loaded);
+        String etag = tree.getEtag();
+
+        loaded.get(0).setName("改过");
+        tree.getAll().get(0).setName("改过");
+        tree.getChildren(1L).get(0).setName("改过");
+        tree.getPath(76L).get(2).setName("改过");
+        tree.getAll().add(category(100L, "新增", 0L));
+
+        assertThat(tree.getPath(76L)).extracting(Category::getName).containsExactly("手机", "手机通讯", "手机");
+        assertThat(tree.getAll()).hasSize(4);
+        assertThat(tree.size()).isEqualTo(4);
+        assertThat(new CategoryTree(phones()).getEtag()).isEqualTo(etag);
+    }
+
+    private List<Category> phones() {
+        return new ArrayList<>(Arrays.asList(
+                category(1L, "手机", 0L),
+                category(2L, "手机通讯", 1L),
+                category(76L, "手机", 2L),
+                category(77L, "手机配件", 2L)));
+    }
+
+    private Category category(Long id, String name, Long parentId) {
+        Category category = new Category();
+        category.setId(id);
+        category.setName(name);
+        category.setParentId(parentId);
+        category.setIsParent(false);
+        category.setSort(1);
+        return category;
+    }
+}
@@ -0,0 +1,293 @@
+package com.leyou.item.service;
+
+import com.github.pagehelper.Page;
+import com.github.pagehelper.PageHelper;
+import com.leyou.common.pojo.PageResult;
+import com.leyou.item.mapper.BrandMapper;
+import com.leyou.item.mapper.SkuMapper;
+import com.leyou.item.mapper.SpuDetailMapper;
+import com.leyou.item.mapper.SpuMapper;
+import com.leyou.item.mapper.StockMapper;
+import com.leyou.item.pojo.*;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import tk.mybatis.mapper.entity.Config;
+import tk.mybatis.mapper.entity.Example;
+import tk.mybatis.mapper.mapperhelper.EntityHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GoodsServiceTest {
+
+    @Mock
+    private SpuMapper spuMapper;
+
+    @Mock
+    private BrandMapper brandMapper;
+
+    @Mock
+    private CategoryService categoryService;
+
+    @Mock
+    private SkuMapper skuMapper;
+
+    @Mock
+    private StockMapper stockMapper;
+
+    @Mock
+    private SpuDetailMapper spuDetailMapper;
+
+    @Mock
+    private IndexOutboxService indexOutboxService;
+
+    @InjectMocks
+    private GoodsService goodsService;
+
+    @BeforeClass
+    public static void initEntities() {
+        //Example需要实体的表信息，没有启动mybatis时手动初始化
+        Config config = new Config();
+        EntityHelper.initEntityNameMap(Spu.class, config);
+        EntityHelper.initEntityNameMap(Sku.class, config);
+    }
+
+    @After
+    public void tearDown() {
+        //mapper是mock的，startPage设置的分页参数不会被消费
+        PageHelper.clearPage();
+    }
+
+    @Test
+    public void spuPageQueriesBrandsOnceAndCategoriesFromMemory() {
+        Page<Spu> page = new Page<>(1, 10);
+        page.addAll(Arrays.asList(spu(1L, 8557L, 76L), spu(2L, 8557L, 76L), spu(3L, 12669L, 76L), spu(4L, 15127L, 77L)));
+        page.setTotal(4);
+        when(spuMapper.selectByExample(any())).thenReturn(page);
+        when(brandMapper.selectByIdList(anyList())).thenReturn(Arrays.asList(brand(8557L, "华为"), brand(12669L, "小米")));
+        when(categoryService.queryPathById(76L)).thenReturn(Arrays.asList(category("手机"), category("手机通讯"), category("手机")));
+        when(categoryService.queryPathById(77L)).thenReturn(Arrays.asList(category("手机"), category("手机配件"), category("耳机")));
+
+        PageResult<SpuBo> result = goodsService.querySpuByPageAndSort(1, 10, true, null);
+
+        //一页只查询一次spu和一次品牌，不再每个spu单独查询
+        verify(spuMapper, times(1)).selectByExample(any());
+        verify(brandMapper, times(1)).selectByIdList(argThat(ids -> ids.size() == 3
+                && ids.containsAll(Arrays.asList(8557L, 12669L, 15127L))));
+        verify(brandMapper, never()).selectByPrimaryKey(any());
+        verifyNoMoreInteractions(brandMapper);
+        //分类从内存中的分类树获取
+        verify(categoryService, times(4)).queryPathById(anyLong());
+        verifyNoMoreInteractions(categoryService);
+
+        assertThat(result.getTotal()).isEqualTo(4L);
+        List<SpuBo> items = result.getItems();
+        assertThat(items).extracting(SpuBo::getBname).containsExactly("华为", "华为", "小米", "");
+        assertThat(items.get(0).getCname()).isEqualTo("手机/手机通讯/手机");
+        assertThat(items.get(3).getCname()).isEqualTo("手机/手机配件/耳机");
+    }
+
+    @Test
+    public void spuPageWithoutBrandsSkipsBrandQuery() {
+        Page<Spu> page = new Page<>(1, 10);
+        page.add(spu(1L, null, 76L));
+        when(spuMapper.selectByExample(any(Example.class))).thenReturn(page);
+        when(categoryService.queryPathById(76L)).thenReturn(Collections.emptyList());
+
+        PageResult<SpuBo> result = goodsService.querySpuByPageAndSort(1, 10, null, "手机");
+
+        verifyZeroInteractions(brandMapper);
+        assertThat(result.getItems()).extracting(SpuBo::getBname).containsExactly("");
+        assertThat(result.getItems()).extracting(SpuBo::getCname).containsExactly("");
+    }
+
+    @Test
+    public void brandWithoutNameShowsEmptyName() {
+        Page<Spu> page = new Page<>(1, 10);
+        page.addAll(Arrays.asList(spu(1L, 8557L, 76L), spu(2L, 12669L, 76L)));
+        when(spuMapper.selectByExample(any(Example.class))).thenReturn(page);
+        when(brandMapper.selectByIdList(anyList())).thenReturn(Arrays.asList(brand(8557L, null), brand(12669L, "小米")));
+        when(categoryService.queryPathById(76L)).thenReturn(Collections.emptyList());
+
+        PageResult<SpuBo> result = goodsService.querySpuByPageAndSort(1, 10, null, null);
+
+        //一条品牌数据有问题不影响整页
+        assertThat(result.getItems()).extracting(SpuBo::getBname).containsExactly("", "小米");
+    }
+
+    @Test
+    public void updateSkusSplitsIntoInsertUpdateAndSoftDelete() {
+        when(skuMapper.selectAllWithStockBySpuId(10L)).thenReturn(Arrays.asList(
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10),
+                sku(2L, "0_1", "白色 128G", 2499L, true, 5),
+                sku(3L, "1_0", "黑色 64G", 1999L, false, 0),
+                sku(4L, "1_1", "黑色 128G", 2499L, true, 8)));
+        assignIdsOnInsert(5L);
+        when(stockMapper.updateByPrimaryKeySelective(any())).thenReturn(1);
+
+        List<Sku> submitted = Arrays.asList(
+                //按id对应，只改了价格
+                sku(1L, "0_0", "白色 64G", 1899L, true, 10),
+                //没有id，按下标对应，只改了库存
+                sku(null, "0_1", "白色 128G", 2499L, true, 7),
+                //对应上逻辑删除过的sku，重新启用
+                sku(null, "1_0", "黑色 64G", 1999L, true, 0),
+                //对应不上，新增
+                sku(null, "2_0", "金色 64G", 2099L, true, 3),
+                //没有启用的不提交，原来的4号sku逻辑删除
+                sku(4L, "1_1", "黑色 128G", 2499L, false, 8));
+
+        SkuChangeSet changes = goodsService.update(spuBo(10L, submitted));
+
+        assertThat(changes.getSpuId()).isEqualTo(10L);
+        assertThat(changes.getUpdated()).containsExactly(1L, 3L);
+        assertThat(changes.getStockChanged()).containsExactly(2L);
+        assertThat(changes.getAdded()).containsExactly(5L);
+        assertThat(changes.getRemoved()).containsExactly(4L);
+
+        //更新只包含变化的列
+        ArgumentCaptor<Sku> diffs = ArgumentCaptor.forClass(Sku.class);
+        verify(skuMapper, times(2)).updateByPrimaryKeySelective(diffs.capture());
+        Sku priceDiff = diffs.getAllValues().get(0);
+        assertThat(priceDiff.getId()).isEqualTo(1L);
+        assertThat(priceDiff.getPrice()).isEqualTo(1899L);
+        assertThat(priceDiff.getTitle()).isNull();
+        assertThat(priceDiff.getIndexes()).isNull();
+        assertThat(priceDiff.getEnable()).isNull();
+        assertThat(priceDiff.getLastUpdateTime()).isNotNull();
+        Sku enableDiff = diffs.getAllValues().get(1);
+        assertThat(enableDiff.getId()).isEqualTo(3L);
+        assertThat(enableDiff.getEnable()).isTrue();
+        assertThat(enableDiff.getPrice()).isNull();
+
+        //库存只写变化的那一条
+        ArgumentCaptor<Stock> stock = ArgumentCaptor.forClass(Stock.class);
+        verify(stockMapper).updateByPrimaryKeySelective(stock.capture());
+        assertThat(stock.getValue().getSkuId()).isEqualTo(2L);
+        assertThat(stock.getValue().getStock()).isEqualTo(7);
+
+        //新增的sku和库存批量插入
+        verify(skuMapper).insertList(argThat(list -> list.size() == 1 && "2_0".equals(list.get(0).getIndexes())));
+        verify(stockMapper).insertList(argThat(list -> list.size() == 1 && list.get(0).getSkuId() == 5L && list.get(0).getStock() == 3));
+
+        //逻辑删除，不物理删除
+        ArgumentCaptor<Sku> removed = ArgumentCaptor.forClass(Sku.class);
+        verify(skuMapper).updateByExampleSelective(removed.capture(), any());
+        assertThat(removed.getValue().getEnable()).isFalse();
+        verify(skuMapper, never()).delete(any());
+        verify(skuMapper, never()).deleteByExample(any());
+        verify(indexOutboxService).record(10L);
+    }
+
+    @Test
+    public void updateWithUnchangedSkusWritesNothing() {
+        when(skuMapper.selectAllWithStockBySpuId(10L)).thenReturn(Collections.singletonList(
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10)));
+
+        //提交的值为空的列视为不修改
+        Sku same = sku(1L, "0_0", null, null, true, 10);
+        SkuChangeSet changes = goodsService.update(spuBo(10L, Collections.singletonList(same)));
+
+        assertThat(changes.getAdded()).isEmpty();
+        assertThat(changes.getUpdated()).isEmpty();
+        assertThat(changes.getStockChanged()).isEmpty();
+        assertThat(changes.getRemoved()).isEmpty();
+        verify(skuMapper, never()).updateByPrimaryKeySelective(any());
+        verify(skuMapper, never()).updateByExampleSelective(any(), any());
+        verify(skuMapper, never()).insertList(anyList());
+        verifyZeroInteractions(stockMapper);
+    }
+
+    @Test
+    public void sameSkuSubmittedTwiceIsOnlyMatchedOnce() {
+        when(skuMapper.selectAllWithStockBySpuId(10L)).thenReturn(Collections.singletonList(
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10)));
+        assignIdsOnInsert(2L);
+
+        SkuChangeSet changes = goodsService.update(spuBo(10L, Arrays.asList(
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10),
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10))));
+
+        //第二条对应不上，作为新的sku插入
+        assertThat(changes.getUpdated()).isEmpty();
+        assertThat(changes.getAdded()).containsExactly(2L);
+        assertThat(changes.getRemoved()).isEmpty();
+    }
+
+    @Test
+    public void updateWithoutSkusSoftDeletesAllEnabled() {
+        when(skuMapper.selectAllWithStockBySpuId(10L)).thenReturn(Arrays.asList(
+                sku(1L, "0_0", "白色 64G", 1999L, true, 10),
+                sku(2L, "0_1", "白色 128G", 2499L, false, 0)));
+
+        SkuChangeSet changes = goodsService.update(spuBo(10L, null));
+
+        //已经逻辑删除的不再重复删除
+        assertThat(changes.getRemoved()).containsExactly(1L);
+        assertThat(changes.getAdded()).isEmpty();
+    }
+
+    //插入时回填自增id
+    private void assignIdsOnInsert(long firstId) {
+        long[] next = {firstId};
+        doAnswer(invocation -> {
+            List<Sku> skus = invocation.getArgument(0);
+            skus.forEach(sku -> sku.setId(next[0]++));
+            return skus.size();
+        }).when(skuMapper).insertList(anyList());
+    }
+
+    private SpuBo spuBo(Long id, List<Sku> skus) {
+        SpuBo spu = new SpuBo();
+        spu.setId(id);
+        spu.setSkus(skus == null ? null : new ArrayList<>(skus));
+        spu.setSpuDetail(new SpuDetail());
+        return spu;
+    }
+
+    private Sku sku(Long id, String indexes, String title, Long price, boolean enable, int stock) {
+        Sku sku = new Sku();
+        sku.setId(id);
+        sku.setIndexes(indexes);
+        sku.setTitle(title);
+        sku.setPrice(price);
+        sku.setEnable(enable);
+        sku.setStock(stock);
+        return sku;
+    }
+
+    private Spu spu(Long id, Long brandId, Long cid3) {
+        Spu spu = new Spu();
+        spu.setId(id);
+        spu.setBrandId(brandId);
+        spu.setCid3(cid3);
+        spu.setTitle("spu" + id);
+        return spu;
+    }
+
+    private Brand brand(Long id, String name) {
+        Brand brand = new Brand();
+        brand.setId(id);
+        brand.setName(name);
+        return brand;
+    }
+
+    private Category category(String name) {
+        Category category = new Category();
+        category.setName(name);
+        return category;
+    }
+}